@@ -0,0 +1,8 @@
+package lavalink.server.config
+
+data class AdaptiveFrameBufferConfig(
+        var enabled: Boolean = false,
+        var minMs: Int = 400,
+        var maxMs: Int = 10000,
+        var stableSeconds: Int = 300
+)
@@ -0,0 +1,8 @@
+package lavalink.server.config
+
+data class FrameCacheConfig(
+        var enabled: Boolean = false,
+        var path: String = "frame-cache",
+        var maxSizeMb: Long = 1024,
+        var maxRecordings: Int = 4
+)
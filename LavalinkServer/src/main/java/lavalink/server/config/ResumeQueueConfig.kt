@@ -0,0 +1,8 @@
+package lavalink.server.config
+
+data class ResumeQueueConfig(
+        var capacity: Int = 1000,
+        var overflow: String = "DropOldest",
+        var replayCapacity: Int = 1000,
+        var replayMaxSizeKb: Int = 1024
+)
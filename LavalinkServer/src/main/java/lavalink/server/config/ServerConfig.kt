@@ -36,10 +36,19 @@ class ServerConfig {
     var nonAllocatingBuffer: Boolean = true
     var bufferDurationMs: Int? = null
     var frameBufferDurationMs: Int? = null
+    var adaptiveFrameBuffer: AdaptiveFrameBufferConfig? = null
     var youtubePlaylistLoadLimit: Int? = null
     var playerUpdateInterval: Int = 5
+    var playerUpdateThreads: Int = 2
+    var statsInterval: Int = 60
+    var commandThreads: Int = Runtime.getRuntime().availableProcessors()
+    var outboundHighWaterMark: Long = 1024 * 1024
     var isGcWarnings = true
     var ratelimit: RateLimitConfig? = null
+    var websocketCompression: WebsocketCompressionConfig? = null
+    var resumeQueue: ResumeQueueConfig? = null
+    var sessionSnapshot: SessionSnapshotConfig? = null
+    var frameCache: FrameCacheConfig? = null
     var youtubeConfig: YoutubeConfig? = null
     var httpAudioConfig: HttpAudioConfig? = null
     var yandexConfig: YandexConfig? = null
@@ -0,0 +1,7 @@
+package lavalink.server.config
+
+data class SessionSnapshotConfig(
+        var enabled: Boolean = false,
+        var path: String = "sessions.json",
+        var interval: Long = 30 // Seconds
+)
@@ -0,0 +1,7 @@
+package lavalink.server.config
+
+data class WebsocketCompressionConfig(
+        var enabled: Boolean = false,
+        var level: Int = 6,
+        var threshold: Int = 1024
+)
@@ -1,8 +1,13 @@
 package lavalink.server.config;
 
+import io.undertow.websockets.jsr.WebSocketDeploymentInfo;
 import lavalink.server.io.HandshakeInterceptorImpl;
 import lavalink.server.io.SocketServer;
+import lavalink.server.io.ThresholdDeflateHandshake;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
@@ -26,4 +31,22 @@ public class WebsocketConfig implements WebSocketConfigurer {
         registry.addHandler(server, "/")
                 .addInterceptors(handshakeInterceptor);
     }
+
+    @Bean
+    public WebServerFactoryCustomizer<UndertowServletWebServerFactory> websocketCompressionCustomizer(ServerConfig serverConfig) {
+        return factory -> {
+            WebsocketCompressionConfig compression = serverConfig.getWebsocketCompression();
+            if (compression == null || !compression.getEnabled()) return;
+
+            factory.addDeploymentInfoCustomizers(deploymentInfo -> {
+                WebSocketDeploymentInfo info = (WebSocketDeploymentInfo) deploymentInfo.getServletContextAttributes()
+                        .get(WebSocketDeploymentInfo.ATTRIBUTE_NAME);
+                if (info == null) {
+                    info = new WebSocketDeploymentInfo();
+                    deploymentInfo.addServletContextAttribute(WebSocketDeploymentInfo.ATTRIBUTE_NAME, info);
+                }
+                info.addExtension(new ThresholdDeflateHandshake(compression.getLevel(), compression.getThreshold()));
+            });
+        };
+    }
 }
@@ -11,6 +11,9 @@ class EventEmitter(private val context: SocketContext, private val listeners: Co
         private val log: Logger = LoggerFactory.getLogger(EventEmitter::class.java)
     }
 
+    val hasListeners: Boolean
+        get() = listeners.isNotEmpty()
+
     fun onWebSocketOpen(resumed: Boolean) = iterate { it.onWebSocketOpen(context, resumed) }
     fun onSocketContextPaused() = iterate { it.onSocketContextPaused(context) }
     fun onSocketContextDestroyed() = iterate { it.onSocketContextDestroyed(context) }
@@ -0,0 +1,33 @@
+package lavalink.server.io
+
+/**
+ * Events a session can subscribe to with the subscribe op. Sessions receive all events until they subscribe.
+ */
+enum class EventType(val eventName: String) {
+    TRACK_START("TrackStartEvent"),
+    TRACK_END("TrackEndEvent"),
+    TRACK_EXCEPTION("TrackExceptionEvent"),
+    TRACK_STUCK("TrackStuckEvent"),
+    PLAYER_PAUSE("PlayerPauseEvent"),
+    PLAYER_RESUME("PlayerResumeEvent"),
+    /** Both single and batched player updates */
+    PLAYER_UPDATE("PlayerStateUpdate"),
+    VOICE_CONNECTION_CLOSED("VoiceConnectionClosed"),
+    VOICE_CONNECTION_READY("VoiceConnectionReady"),
+    VOICE_CONNECTION_RESUMED("VoiceConnectionResumed"),
+    VOICE_USER_CONNECTED("VoiceUserConnected"),
+    VOICE_USER_DISCONNECTED("VoiceUserDisconnected"),
+    VOICE_EXTERNAL_IP_DISCOVERED("VoiceExternalIpDiscovered"),
+    VOICE_SESSION_DESCRIPTION("VoiceSessionDescription"),
+    SPONSORBLOCK_SEGMENT_LOADED("SponsorblockSegmentLoaded"),
+    SPONSORBLOCK_SEGMENT_SKIPPED("SponsorblockSegmentSkipped"),
+    SPONSORBLOCK_SEGMENT_FAILED("SponsorblockSegmentFailed");
+
+    val bit = 1L shl ordinal
+
+    companion object {
+        const val ALL = -1L
+
+        fun fromName(name: String) = values().find { it.eventName == name }
+    }
+}
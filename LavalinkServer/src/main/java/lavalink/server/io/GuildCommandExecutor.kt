@@ -0,0 +1,133 @@
+package lavalink.server.io
+
+import io.prometheus.client.Gauge
+import io.prometheus.client.Histogram
+import lavalink.server.config.ServerConfig
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import javax.annotation.PreDestroy
+
+/**
+ * Runs websocket commands off the IO thread. Each guild of a session gets a mailbox, which runs its commands one at a
+ * time and in order on a node-wide pool, so a slow guild no longer holds up the other guilds of the session.
+ */
+@Service
+class GuildCommandExecutor(serverConfig: ServerConfig) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(GuildCommandExecutor::class.java)
+
+        /** Commands a mailbox runs before yielding its thread to other mailboxes */
+        private const val BATCH_SIZE = 16
+
+        private val queuedCommands = Gauge.build()
+            .name("lavalink_guild_command_queued")
+            .help("Commands waiting in guild mailboxes")
+            .register()
+
+        private val activeMailboxes = Gauge.build()
+            .name("lavalink_guild_command_mailboxes")
+            .help("Guild mailboxes with pending or running commands")
+            .register()
+
+        private val mailboxDepth = Histogram.build()
+            .name("lavalink_guild_command_mailbox_depth")
+            .help("Commands already waiting in a guild mailbox when a new one is added")
+            .buckets(0.0, 1.0, 2.0, 4.0, 8.0, 16.0, 32.0, 64.0)
+            .register()
+    }
+
+    private val threadCount = AtomicInteger()
+    private val pool = Executors.newFixedThreadPool(serverConfig.commandThreads.coerceAtLeast(1)) { r ->
+        val thread = Thread(r)
+        thread.name = "guild-command-" + threadCount.incrementAndGet()
+        thread.isDaemon = true
+        thread
+    }
+
+    fun newMailboxes() = GuildMailboxes()
+
+    @PreDestroy
+    fun shutdown() {
+        pool.shutdown()
+    }
+
+    /**
+     * The mailboxes of a single session
+     */
+    inner class GuildMailboxes {
+        private val mailboxes = ConcurrentHashMap<Long, Mailbox>()
+
+        @Volatile
+        private var closed = false
+
+        /**
+         * @param onDiscard called instead of the command if the session is closed before the command runs
+         */
+        fun submit(guildId: Long, onDiscard: (() -> Unit)? = null, command: () -> Unit) {
+            if (closed) {
+                onDiscard?.invoke()
+                return
+            }
+
+            var start: Mailbox? = null
+            // Adding to and retiring a mailbox both happen under the map's lock for the key, so no command is lost
+            mailboxes.compute(guildId) { _, existing ->
+                val mailbox = existing ?: Mailbox(guildId).also { activeMailboxes.inc() }
+                mailboxDepth.observe(mailbox.queue.size.toDouble())
+                mailbox.queue.add(Command(command, onDiscard))
+                if (!mailbox.running) {
+                    mailbox.running = true
+                    start = mailbox
+                }
+                mailbox
+            }
+            queuedCommands.inc()
+            start?.let { pool.execute(it::drain) }
+        }
+
+        /**
+         * Discards pending commands. Commands that are already running are not interrupted
+         */
+        fun close() {
+            closed = true
+        }
+
+        private inner class Command(val run: () -> Unit, val onDiscard: (() -> Unit)?)
+
+        private inner class Mailbox(private val guildId: Long) {
+            val queue = ConcurrentLinkedQueue<Command>()
+            /** Guarded by the map's lock for [guildId] */
+            var running = false
+
+            fun drain() {
+                for (i in 0 until BATCH_SIZE) {
+                    val command = queue.poll() ?: if (retireIfEmpty()) return else continue
+                    queuedCommands.dec()
+                    try {
+                        if (closed) command.onDiscard?.invoke() else command.run()
+                    } catch (e: Exception) {
+                        log.error("Exception while handling command for guild $guildId", e)
+                    }
+                }
+                pool.execute(::drain)
+            }
+
+            private fun retireIfEmpty(): Boolean {
+                var retired = false
+                mailboxes.computeIfPresent(guildId) { _, mailbox ->
+                    if (mailbox !== this || queue.isNotEmpty()) return@computeIfPresent mailbox
+                    running = false
+                    retired = true
+                    activeMailboxes.dec()
+                    null
+                }
+                return retired
+            }
+        }
+    }
+}
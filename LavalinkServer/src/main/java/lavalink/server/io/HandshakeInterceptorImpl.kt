@@ -16,6 +16,9 @@ constructor(private val serverConfig: ServerConfig, private val socketServer: So
 
     companion object {
         private val log = LoggerFactory.getLogger(HandshakeInterceptorImpl::class.java)
+
+        /** Optional protocol extensions. Enabled extensions are echoed so that clients know they are supported */
+        private val extensionHeaders = listOf("Batch-Player-Updates", "Delta-Player-Updates")
     }
 
     /**
@@ -24,7 +27,7 @@ constructor(private val serverConfig: ServerConfig, private val socketServer: So
      * @return true if authenticated
      */
     override fun beforeHandshake(request: ServerHttpRequest, response: ServerHttpResponse, wsHandler: WebSocketHandler,
-                                 attributes: Map<String, Any>): Boolean {
+                                 attributes: MutableMap<String, Any>): Boolean {
         val password = request.headers.getFirst("Authorization")
         val matches = password == serverConfig.password
 
@@ -39,6 +42,18 @@ constructor(private val serverConfig: ServerConfig, private val socketServer: So
         val resuming = resumeKey != null && socketServer.canResume(resumeKey)
         response.headers.add("Session-Resumed", resuming.toString())
 
+        extensionHeaders.forEach {
+            if (request.headers.getFirst(it)?.toBoolean() == true) response.headers.add(it, "true")
+        }
+
+        val requestedEncoding = request.headers.getFirst(PayloadEncoding.HEADER)
+        val encoding = PayloadEncoding.fromHeader(requestedEncoding) ?: PayloadEncoding.JSON
+        if (requestedEncoding != null && !requestedEncoding.equals(encoding.headerValue, ignoreCase = true)) {
+            log.warn("Unsupported payload encoding '{}' requested, falling back to {}", requestedEncoding, encoding.headerValue)
+        }
+        attributes[PayloadEncoding.ATTRIBUTE] = encoding
+        response.headers.add(PayloadEncoding.HEADER, encoding.headerValue)
+
         return matches
     }
 
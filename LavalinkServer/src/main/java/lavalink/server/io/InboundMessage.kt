@@ -0,0 +1,51 @@
+package lavalink.server.io
+
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import lavalink.server.util.CborCodec
+import org.json.JSONObject
+
+/**
+ * A message received from a client. Only the top-level `op` and `guildId` fields are read up front with a streaming
+ * parser; the full object is parsed the first time [json] is accessed, which some ops never do.
+ */
+class InboundMessage private constructor(
+    val op: String?,
+    val guildId: String?,
+    private val parse: () -> JSONObject
+) {
+
+    companion object {
+        fun fromText(text: String): InboundMessage {
+            val (op, guildId) = PayloadEncoding.JSON.factory.createParser(text).use { readHeader(it) }
+            return InboundMessage(op, guildId) { JSONObject(text) }
+        }
+
+        /**
+         * @param data kept until [json] is parsed, which may happen on another thread, so it must not be reused
+         */
+        fun fromCbor(data: ByteArray, offset: Int, length: Int): InboundMessage {
+            val (op, guildId) = PayloadEncoding.CBOR.factory.createParser(data, offset, length).use { readHeader(it) }
+            return InboundMessage(op, guildId) { CborCodec.decode(data, offset, length) }
+        }
+
+        private fun readHeader(parser: JsonParser): Pair<String?, String?> {
+            var op: String? = null
+            var guildId: String? = null
+            if (parser.nextToken() != JsonToken.START_OBJECT) return op to guildId
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (op == null || guildId == null)) {
+                val field = parser.currentName
+                val value = parser.nextToken()
+                when {
+                    value.isStructStart -> parser.skipChildren()
+                    field == "op" -> op = parser.text
+                    field == "guildId" -> guildId = parser.text
+                }
+            }
+            return op to guildId
+        }
+    }
+
+    val json: JSONObject by lazy(LazyThreadSafetyMode.NONE) { parse() }
+}
@@ -0,0 +1,155 @@
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Histogram
+import io.undertow.connector.PooledByteBuffer
+import io.undertow.websockets.core.WebSocketCallback
+import io.undertow.websockets.core.WebSocketChannel
+import io.undertow.websockets.core.WebSockets
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Outgoing messages of a session, written from the channel's IO thread.
+ *
+ * Messages queued while a flush is pending are written in the same flush, so Undertow can send them with a single
+ * gathering write. Once more than [highWaterMark] bytes are waiting to be written the client is considered slow:
+ * player updates are then deferred and merged per guild, and [onRecovered] is called with the deferred guilds once
+ * the backlog has fallen below half the high-water mark.
+ */
+class OutboundQueue(
+    private val highWaterMark: Long,
+    private val onRecovered: (Set<Long>) -> Unit
+) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(OutboundQueue::class.java)
+
+        private val queuedBytesTotal = Gauge.build()
+            .name("lavalink_websocket_outbound_queued_bytes")
+            .help("Bytes of outgoing websocket messages which have not been written yet")
+            .register()
+
+        private val flushLatency = Histogram.build()
+            .name("lavalink_websocket_outbound_latency_seconds")
+            .help("Time from queueing an outgoing websocket message until it was written")
+            .buckets(0.0005, 0.001, 0.005, 0.010, 0.050, 0.100, 0.500, 1.000, 5.000)
+            .register()
+
+        private val slowConsumers = Gauge.build()
+            .name("lavalink_websocket_slow_consumers")
+            .help("Sessions whose player updates are deferred because the client is not keeping up")
+            .register()
+
+        private val deferredUpdates = Counter.build()
+            .name("lavalink_websocket_deferred_player_updates_total")
+            .help("Player updates withheld from slow clients: deferred, or merged into an already deferred update")
+            .labelNames("outcome")
+            .register()
+    }
+
+    private class Message(
+        val channel: WebSocketChannel,
+        val data: PooledByteBuffer,
+        val binary: Boolean,
+        val size: Int,
+        val queuedAt: Long
+    )
+
+    private val pending = ConcurrentLinkedQueue<Message>()
+    private val flushScheduled = AtomicBoolean()
+    private val queuedBytes = AtomicLong()
+    private val deferredGuilds = ConcurrentHashMap.newKeySet<Long>()
+
+    @Volatile
+    var isSlow = false
+        private set
+
+    /**
+     * Takes ownership of [data]
+     */
+    fun enqueue(channel: WebSocketChannel, data: PooledByteBuffer, binary: Boolean) {
+        val size = data.buffer.remaining()
+        queuedBytesTotal.inc(size.toDouble())
+        if (queuedBytes.addAndGet(size.toLong()) > highWaterMark) markSlow()
+
+        pending.add(Message(channel, data, binary, size, System.nanoTime()))
+        if (flushScheduled.compareAndSet(false, true)) channel.ioThread.execute(::flush)
+    }
+
+    /**
+     * Remembers that the given guilds have a player update pending, to be sent once the client catches up
+     */
+    fun defer(guildIds: Collection<Long>) {
+        guildIds.forEach {
+            deferredUpdates.labels(if (deferredGuilds.add(it)) "deferred" else "merged").inc()
+        }
+    }
+
+    /**
+     * Stops tracking the session as a slow consumer. Messages already queued are still written
+     */
+    fun close() {
+        synchronized(this) {
+            if (!isSlow) return
+            isSlow = false
+            slowConsumers.dec()
+        }
+        deferredGuilds.clear()
+    }
+
+    private fun flush() {
+        flushScheduled.set(false)
+        while (true) {
+            val message = pending.poll() ?: return
+            val callback = object : WebSocketCallback<Void> {
+                override fun complete(channel: WebSocketChannel, context: Void?) {
+                    onWritten(message)
+                }
+
+                override fun onError(channel: WebSocketChannel, context: Void?, throwable: Throwable) {
+                    log.error("Error", throwable)
+                    onWritten(message)
+                }
+            }
+
+            if (message.binary) {
+                WebSockets.sendBinary(message.data, message.channel, callback)
+            } else {
+                WebSockets.sendText(message.data, message.channel, callback)
+            }
+        }
+    }
+
+    private fun onWritten(message: Message) {
+        flushLatency.observe((System.nanoTime() - message.queuedAt) / TimeUnit.SECONDS.toNanos(1).toDouble())
+        queuedBytesTotal.dec(message.size.toDouble())
+        if (queuedBytes.addAndGet(-message.size.toLong()) <= highWaterMark / 2 && isSlow) recover()
+    }
+
+    @Synchronized
+    private fun markSlow() {
+        if (isSlow) return
+        isSlow = true
+        slowConsumers.inc()
+        log.warn("Client is not keeping up with {} bytes queued, deferring player updates", queuedBytes.get())
+    }
+
+    private fun recover() {
+        synchronized(this) {
+            if (!isSlow) return
+            isSlow = false
+            slowConsumers.dec()
+        }
+
+        val guilds = deferredGuilds.toSet()
+        deferredGuilds.removeAll(guilds)
+        log.info("Client caught up, sending {} deferred player updates", guilds.size)
+        if (guilds.isNotEmpty()) onRecovered(guilds)
+    }
+}
@@ -0,0 +1,21 @@
+package lavalink.server.io
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+
+/**
+ * Wire formats of the websocket protocol. Clients select one using the Payload-Encoding handshake header.
+ */
+enum class PayloadEncoding(val headerValue: String, val factory: JsonFactory) {
+    /** Text frames containing JSON. The default */
+    JSON("json", JsonFactory()),
+    /** Binary frames containing CBOR, which maps one-to-one to the JSON messages */
+    CBOR("cbor", CBORFactory());
+
+    companion object {
+        const val HEADER = "Payload-Encoding"
+        const val ATTRIBUTE = "payloadEncoding"
+
+        fun fromHeader(value: String?): PayloadEncoding? = values().find { it.headerValue.equals(value, ignoreCase = true) }
+    }
+}
@@ -0,0 +1,43 @@
+package lavalink.server.io
+
+import io.prometheus.client.Gauge
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Player counts maintained by the players themselves as their state changes, so reading them never scans the players.
+ * Changes are propagated to the [parent], which allows a session's counters to roll up into the node's.
+ * The node counters, those without a parent, are also exported to Prometheus.
+ */
+class PlayerCounters(private val parent: PlayerCounters? = null) {
+
+    companion object {
+        private val players = Gauge.build()
+            .name("lavalink_players")
+            .help("Players on this node: total, playing, and paused with a track loaded")
+            .labelNames("state")
+            .register()
+    }
+
+    private val totalCount = AtomicInteger()
+    private val playingCount = AtomicInteger()
+    private val pausedCount = AtomicInteger()
+
+    val total get() = totalCount.get()
+    val playing get() = playingCount.get()
+    val paused get() = pausedCount.get()
+
+    fun add(total: Int, playing: Int, paused: Int) {
+        if (total != 0) totalCount.addAndGet(total)
+        if (playing != 0) playingCount.addAndGet(playing)
+        if (paused != 0) pausedCount.addAndGet(paused)
+
+        if (parent != null) {
+            parent.add(total, playing, paused)
+            return
+        }
+
+        if (total != 0) players.labels("total").inc(total.toDouble())
+        if (playing != 0) players.labels("playing").inc(playing.toDouble())
+        if (paused != 0) players.labels("paused").inc(paused.toDouble())
+    }
+}
@@ -8,9 +8,11 @@ import lavalink.server.player.TrackEndMarkerHandler
 import lavalink.server.player.filters.FilterChain
 import lavalink.server.util.Util
 import moe.kyokobot.koe.VoiceServerInfo
+import org.json.JSONArray
 import org.json.JSONObject
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
 import kotlin.reflect.KFunction1
 
 class PlayerFunHandlers(private val context: SocketContext) {
@@ -21,12 +23,18 @@ class PlayerFunHandlers(private val context: SocketContext) {
     public fun play(json: JSONObject, player: Player) {
         val noReplace = json.optBoolean("noReplace", false)
 
-        if (noReplace && player.playingTrack != null) {
+        if (noReplace && (player.playingTrack != null || player.isBroadcasting)) {
             log.info("Skipping play request because of noReplace")
             return
         }
 
-        val track = Util.toAudioTrack(context.audioPlayerManager, json.getString("track"))
+        if (json.optBoolean("broadcast", false)) {
+            player.setPause(json.optBoolean("pause", false))
+            player.broadcast(Util.toAudioTrack(context.audioPlayerManager, json.getString("track")))
+            return
+        }
+
+        val track = player.withFrameCache(Util.toAudioTrack(context.audioPlayerManager, json.getString("track")))
 
         if (json.has("startTime")) {
             track.position = json.getLong("startTime")
@@ -56,6 +64,59 @@ class PlayerFunHandlers(private val context: SocketContext) {
         if (json.has("services")) player.getServicesHandler().parseJSON(json.getJSONObject("services"))
     }
 
+    /**
+     * Applies [update] commands to many players at once. Commands run in the mailbox of their guild, so different
+     * guilds are updated in parallel. Each command is checked before it is applied and succeeds or fails on its own,
+     * a failed command does not undo the others.
+     *
+     * @return the state of each player, or an error, in the order of the commands
+     */
+    public fun batch(commands: JSONArray): CompletableFuture<JSONArray> {
+        val futures = (0 until commands.length()).map { i ->
+            val command = commands.optJSONObject(i)
+            val result = JSONObject().put("guildId", command?.opt("guildId")?.toString() ?: JSONObject.NULL)
+            fun rejected(error: String) = CompletableFuture.completedFuture(result.put("error", error))
+
+            if (command == null) return@map rejected("Command is not an object")
+            val guildId = command.opt("guildId")?.toString()?.toLongOrNull()
+                ?: return@map rejected("Command has no valid guildId")
+            validate(command)?.let { return@map rejected(it) }
+
+            val future = CompletableFuture<JSONObject>()
+            context.mailboxes.submit(guildId, { future.complete(result.put("error", "Session closed")) }) {
+                try {
+                    val player = context.getPlayer(guildId)
+                    update(command, player)
+                    result.put("state", player.state)
+                } catch (e: Exception) {
+                    log.error("Batch command for guild $guildId failed", e)
+                    result.put("error", e.message ?: e.javaClass.simpleName)
+                }
+                future.complete(result)
+            }
+            future
+        }
+
+        return CompletableFuture.allOf(*futures.toTypedArray())
+            .thenApply { JSONArray(futures.map { it.join() }) }
+    }
+
+    /**
+     * @return why [update] would fail on the command because of a field of the wrong type, or null if it would not
+     */
+    private fun validate(command: JSONObject): String? {
+        val numbers = listOf("volume", "position").filter { command.has(it) && command.opt(it) !is Number }
+        val objects = listOf("filters", "play", "voice", "services")
+            .filter { command.has(it) && command.opt(it) !is JSONObject }
+        return when {
+            numbers.isNotEmpty() -> "${numbers.first()} must be a number"
+            objects.isNotEmpty() -> "${objects.first()} must be an object"
+            command.has("pause") && command.opt("pause") !is Boolean -> "pause must be a boolean"
+            command.has("play") && command.getJSONObject("play").opt("track") !is String -> "play.track must be a string"
+            else -> null
+        }
+    }
+
     public fun voiceUpdate(json: JSONObject, player: Player) {
         val sessionId = json.getString("sessionId")
         
@@ -68,8 +129,10 @@ class PlayerFunHandlers(private val context: SocketContext) {
         //clear old connection
         context.koe.destroyConnection(player.getGuildId())
 
+        val info = VoiceServerInfo(sessionId, endpoint, token)
+        player.setVoiceServerInfo(info)
         val conn = context.getVoiceConnection(player)
-        conn.connect(VoiceServerInfo(sessionId, endpoint, token)).whenComplete { _, _ ->
+        conn.connect(info).whenComplete { _, _ ->
             player.provideTo(conn)
         }
     }
@@ -0,0 +1,53 @@
+package lavalink.server.io
+
+import org.json.JSONArray
+import org.json.JSONObject
+
+/**
+ * Moves players from a source to a target: exports them, imports them into the target and destroys on the source
+ * those the target accepted. Players the target rejected keep running on the source.
+ */
+class PlayerMigration(private val source: Source, private val target: Target) {
+
+    interface Source {
+        val guildIds: List<Long>
+        fun exportPlayer(guildId: Long): JSONObject?
+        fun destroyPlayer(guildId: Long)
+    }
+
+    interface Target {
+        /**
+         * @return the result of each import, as made by [PlayerFunHandlers.batch]
+         */
+        fun importPlayers(exports: JSONArray): JSONArray
+    }
+
+    class Result(val migrated: JSONArray, val failed: JSONArray)
+
+    /**
+     * @param guildIds the players to move, or null for all players of the source
+     * @param limit the most players to move, or null for no limit
+     */
+    fun migrate(guildIds: List<Long>?, limit: Int?): Result {
+        require(limit == null || limit >= 0) { "limit must not be negative" }
+
+        val candidates = guildIds ?: source.guildIds
+        val exports = JSONArray()
+        candidates.take(limit ?: candidates.size).forEach { guildId ->
+            source.exportPlayer(guildId)?.let { exports.put(it) }
+        }
+
+        val migrated = JSONArray()
+        val failed = JSONArray()
+        target.importPlayers(exports).forEach {
+            val result = it as JSONObject
+            if (result.has("error")) {
+                failed.put(result)
+            } else {
+                source.destroyPlayer(result.getString("guildId").toLong())
+                migrated.put(result.getString("guildId"))
+            }
+        }
+        return Result(migrated, failed)
+    }
+}
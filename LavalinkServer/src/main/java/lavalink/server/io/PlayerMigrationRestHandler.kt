@@ -0,0 +1,116 @@
+package lavalink.server.io
+
+import org.json.JSONArray
+import org.json.JSONObject
+import org.slf4j.LoggerFactory
+import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
+import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestBody
+import org.springframework.web.bind.annotation.RestController
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import javax.servlet.http.HttpServletRequest
+
+/**
+ * Moves players of a session to a session on another node, for instance to drain this node without interrupting
+ * playback. The client owning the sessions is responsible for sending further commands to the new node.
+ */
+@RestController
+class PlayerMigrationRestHandler(private val server: SocketServer) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(PlayerMigrationRestHandler::class.java)
+        private const val TIMEOUT_MS = 30000
+    }
+
+    /**
+     * Expects `target` (the base URL of the other node), `password` and `sessionId` of the receiving session, and
+     * optionally the `guildIds` to move or a `limit` on how many players are moved.
+     */
+    @PostMapping("/players/migrate")
+    fun migratePlayers(request: HttpServletRequest, @RequestBody body: String): ResponseEntity<String> {
+        val context = server.getExistingContext(request.getHeader("Session-Id"))
+            ?: return ResponseEntity(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
+
+        val json = JSONObject(body)
+        val limit = if (json.has("limit")) json.getInt("limit") else null
+        if (limit != null && limit < 0) {
+            return ResponseEntity.badRequest().body(JSONObject().put("error", "limit must not be negative").toString())
+        }
+        val guildIds = json.optJSONArray("guildIds")?.map { it.toString().toLong() }
+        val target = json.getString("target").trimEnd('/')
+
+        val source = object : PlayerMigration.Source {
+            override val guildIds get() = context.getPlayers().keys.toList()
+            override fun exportPlayer(guildId: Long) = inMailbox(context, guildId) { context.exportPlayer(guildId) }
+            override fun destroyPlayer(guildId: Long) {
+                inMailbox(context, guildId) { context.destroyPlayer(guildId) }
+            }
+        }
+        val remote = object : PlayerMigration.Target {
+            override fun importPlayers(exports: JSONArray) = post(target + "/players/import",
+                json.getString("password"), json.getString("sessionId"), JSONObject().put("players", exports))
+                .getJSONArray("results")
+        }
+
+        val result = try {
+            PlayerMigration(source, remote).migrate(guildIds, limit)
+        } catch (e: IOException) {
+            log.error("Failed to migrate players to {}", target, e)
+            return ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+                .body(JSONObject().put("error", e.message ?: e.javaClass.simpleName).toString())
+        }
+
+        log.info("Migrated {} players to {}, {} failed", result.migrated.length(), target, result.failed.length())
+        return ResponseEntity.ok(JSONObject().put("migrated", result.migrated).put("failed", result.failed).toString())
+    }
+
+    /**
+     * Runs [command] in the mailbox of the guild and waits for it, so it is not interleaved with other commands for
+     * the guild
+     *
+     * @return the result of [command], or null if the session closed before it ran
+     */
+    private fun <T> inMailbox(context: SocketContext, guildId: Long, command: () -> T?): T? {
+        val future = CompletableFuture<T?>()
+        context.mailboxes.submit(guildId, { future.complete(null) }) {
+            try {
+                future.complete(command())
+            } catch (e: Exception) {
+                future.completeExceptionally(e)
+            }
+        }
+        try {
+            return future.join()
+        } catch (e: CompletionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun post(url: String, password: String, sessionId: String, body: JSONObject): JSONObject {
+        val connection = URL(url).openConnection() as HttpURLConnection
+        try {
+            connection.requestMethod = "POST"
+            connection.connectTimeout = TIMEOUT_MS
+            connection.readTimeout = TIMEOUT_MS
+            connection.doOutput = true
+            connection.setRequestProperty("Authorization", password)
+            connection.setRequestProperty("Session-Id", sessionId)
+            connection.setRequestProperty("Content-Type", "application/json")
+            connection.outputStream.use { it.write(body.toString().toByteArray(StandardCharsets.UTF_8)) }
+
+            if (connection.responseCode != HttpURLConnection.HTTP_OK) {
+                throw IOException("Target responded with ${connection.responseCode}")
+            }
+            return JSONObject(connection.inputStream.reader(StandardCharsets.UTF_8).use { it.readText() })
+        } finally {
+            connection.disconnect()
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Histogram
+import lavalink.server.config.ServerConfig
+import lavalink.server.player.Player
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.annotation.PreDestroy
+
+/**
+ * Node-wide hashed timer wheel driving the periodic player updates of every session.
+ *
+ * One revolution of the wheel equals the configured player update interval, so a player stays in the same slot for as
+ * long as it has a track and never needs to be rescheduled. Players are spread over the slots by guild id to avoid
+ * every update of a session firing on the same tick. Each slot keeps its players grouped by session, so a tick hands
+ * them to the workers without regrouping them.
+ */
+@Service
+class PlayerUpdateScheduler(serverConfig: ServerConfig) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(PlayerUpdateScheduler::class.java)
+
+        /** Resolution of the wheel. Updates may be delayed by up to one tick */
+        private const val TICK_MS = 100L
+        private const val WORKER_QUEUE_CAPACITY = 1024
+
+        private val tickLag = Histogram.build()
+            .name("lavalink_player_update_tick_lag_seconds")
+            .help("Delay between the planned and the actual start of a player update tick")
+            .buckets(0.001, 0.005, 0.010, 0.025, 0.050, 0.100, 0.250, 0.500, 1.000)
+            .register()
+
+        private val scheduledPlayers = Gauge.build()
+            .name("lavalink_player_update_scheduled_players")
+            .help("Players currently receiving periodic updates")
+            .register()
+
+        private val rejectedDispatches = Counter.build()
+            .name("lavalink_player_update_rejected_total")
+            .help("Session dispatches skipped because the update workers were saturated")
+            .register()
+    }
+
+    private val wheel = Array((serverConfig.playerUpdateInterval * 1000L / TICK_MS).coerceAtLeast(1).toInt()) {
+        ConcurrentHashMap<SocketContext, MutableSet<Player>>()
+    }
+
+    private val ticker = Executors.newSingleThreadScheduledExecutor { r ->
+        val thread = Thread(r)
+        thread.name = "player-update-ticker"
+        thread.isDaemon = true
+        thread
+    }
+
+    private val workerCount = AtomicInteger()
+    private val workers = serverConfig.playerUpdateThreads.coerceAtLeast(1).let { threads ->
+        ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, ArrayBlockingQueue<Runnable>(WORKER_QUEUE_CAPACITY)) { r ->
+            val thread = Thread(r)
+            thread.name = "player-update-" + workerCount.incrementAndGet()
+            thread.isDaemon = true
+            thread
+        }
+    }
+
+    private val startTime = System.nanoTime()
+    private var tick = 0L // Only accessed by the ticker thread
+
+    init {
+        ticker.scheduleAtFixedRate(::onTick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Starts sending periodic updates for this player, the first one right away. Does nothing if the player is
+     * already scheduled.
+     */
+    fun schedule(player: Player) {
+        var added = false
+        // Adding to and removing the last player of a session's set both happen under the slot's lock for the session
+        wheel[slotOf(player)].compute(player.socket) { _, players ->
+            (players ?: ConcurrentHashMap.newKeySet()).also { added = it.add(player) }
+        }
+        if (!added) return
+        scheduledPlayers.inc()
+        submit(player.socket, listOf(player))
+    }
+
+    /**
+     * Stops sending periodic updates for this player. Does nothing if the player is not scheduled.
+     */
+    fun cancel(player: Player) {
+        var removed = false
+        wheel[slotOf(player)].computeIfPresent(player.socket) { _, players ->
+            removed = players.remove(player)
+            players.takeUnless { it.isEmpty() }
+        }
+        if (removed) scheduledPlayers.dec()
+    }
+
+    private fun slotOf(player: Player): Int {
+        // Fibonacci hashing, as the low bits of snowflakes are not evenly distributed
+        val hash = (player.guildId * -0x61c8864680b583ebL) ushr 32
+        return (hash % wheel.size).toInt()
+    }
+
+    private fun onTick() {
+        try {
+            tick++
+            val lag = System.nanoTime() - (startTime + TimeUnit.MILLISECONDS.toNanos(tick * TICK_MS))
+            tickLag.observe(lag.coerceAtLeast(0) / 1_000_000_000.0)
+
+            val slot = wheel[(tick % wheel.size).toInt()]
+            if (slot.isEmpty()) return
+
+            slot.forEach { context, players -> submit(context, players) }
+        } catch (e: Exception) {
+            log.error("Exception while ticking player updates", e)
+        }
+    }
+
+    private fun submit(context: SocketContext, players: Collection<Player>) {
+        try {
+            workers.execute { dispatch(context, players) }
+        } catch (e: RejectedExecutionException) {
+            rejectedDispatches.inc()
+            log.warn("Skipped updates for {} players because the update workers are saturated", players.size)
+        }
+    }
+
+    private fun dispatch(context: SocketContext, players: Collection<Player>) {
+        if (context.sessionPaused) return
+
+        try {
+            SocketServer.sendPlayerUpdates(context, players)
+        } catch (e: Exception) {
+            log.error("Exception while sending player updates", e)
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        ticker.shutdown()
+        workers.shutdown()
+    }
+}
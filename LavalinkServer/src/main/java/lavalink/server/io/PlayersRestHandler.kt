@@ -12,6 +12,7 @@ import org.springframework.web.bind.annotation.RequestBody
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.RestController
 import javax.servlet.http.HttpServletRequest
+import java.util.concurrent.CompletableFuture
 import org.json.JSONObject
 
 @RestController
@@ -27,123 +28,204 @@ class PlayersRestHandler(private val server: SocketServer) {
     }
 
     @DeleteMapping("/players/{guildId}")
-    fun playerDelete(request: HttpServletRequest, @PathVariable("guildId") guildId: String): ResponseEntity<Void> {
+    fun playerDelete(request: HttpServletRequest, @PathVariable("guildId") guildId: String): CompletableFuture<ResponseEntity<Void>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        context.destroyPlayer(guildId.toLong())
-        return ResponseEntity(HttpStatus.NO_CONTENT)
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        return withExistingPlayer(context, guildId) {
+            context.destroyPlayer(guildId.toLong())
+            ResponseEntity(HttpStatus.NO_CONTENT)
+        }
+    }
+
+    @PostMapping("/players/batch")
+    fun playersBatch(request: HttpServletRequest, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
+        val context = getExistingContext(request.getHeader("Session-Id"))
+        if (context == null) return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.NOT_FOUND))
+        if (body.isBlank()) return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.BAD_REQUEST))
+        val commands = JSONObject(body).optJSONArray("commands")
+            ?: return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.BAD_REQUEST))
+        return context.playerHandler.batch(commands)
+            .thenApply { ResponseEntity.ok(JSONObject().put("results", it).toString()) }
+    }
+
+    @GetMapping("/players/{guildId}/export")
+    fun exportPlayer(request: HttpServletRequest, @PathVariable("guildId") guildId: String): CompletableFuture<ResponseEntity<String>> {
+        val context = getExistingContext(request.getHeader("Session-Id"))
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        return withExistingPlayer(context, guildId) { player ->
+            ResponseEntity.ok(player.snapshot().toString())
+        }
+    }
+
+    @PostMapping("/players/import")
+    fun importPlayers(request: HttpServletRequest, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
+        val context = getExistingContext(request.getHeader("Session-Id"))
+        if (context == null) return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.NOT_FOUND))
+        if (body.isBlank()) return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.BAD_REQUEST))
+        val players = JSONObject(body).optJSONArray("players")
+            ?: return CompletableFuture.completedFuture(ResponseEntity(HttpStatus.BAD_REQUEST))
+        return context.importPlayers(players)
+            .thenApply { ResponseEntity.ok(JSONObject().put("results", it).toString()) }
     }
 
     @PostMapping("/players/{guildId}")
-    fun createPlayer(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun createPlayer(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = server.getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getOrCreatePlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR)
-        if (body.isNotBlank()) context.playerHandler.update(JSONObject(body), player)
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        val json = if (body.isNotBlank()) JSONObject(body) else null
+        return inMailbox(context, guildId) {
+            val player = getOrCreatePlayer(guildId, context)
+            if (player == null) return@inMailbox ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR)
+            if (json != null) context.playerHandler.update(json, player)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}")
-    fun playerEdit(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerEdit(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        context.playerHandler.update(JSONObject(body), player)
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val json = JSONObject(body)
+        return withExistingPlayer(context, guildId) { player ->
+            context.playerHandler.update(json, player)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PostMapping("/players/{guildId}/voice")
-    fun playerVoice(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<Void> {
+    fun playerVoice(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<Void>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getOrCreatePlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        context.playerHandler.voiceUpdate(JSONObject(body), player)
-        return ResponseEntity(HttpStatus.NO_CONTENT)
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val json = JSONObject(body)
+        return inMailbox(context, guildId) {
+            val player = getOrCreatePlayer(guildId, context)
+            if (player == null) return@inMailbox ResponseEntity(HttpStatus.NOT_FOUND)
+            context.playerHandler.voiceUpdate(json, player)
+            ResponseEntity(HttpStatus.NO_CONTENT)
+        }
     }
 
     @PostMapping("/players/{guildId}/play")
-    fun playerPlay(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerPlay(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        context.playerHandler.play(JSONObject(body), player)
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val json = JSONObject(body)
+        return withExistingPlayer(context, guildId) { player ->
+            context.playerHandler.play(json, player)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PostMapping("/players/{guildId}/stop")
-    fun playerStop(request: HttpServletRequest, @PathVariable("guildId") guildId: String): ResponseEntity<String> {
+    fun playerStop(request: HttpServletRequest, @PathVariable("guildId") guildId: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        player.stop()
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        return withExistingPlayer(context, guildId) { player ->
+            player.stop()
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}/filters")
-    fun playerFilters(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerFilters(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        FilterChain.setFiltersFromJSON(JSONObject(body), player.getFilterChain())
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val json = JSONObject(body)
+        return withExistingPlayer(context, guildId) { player ->
+            FilterChain.setFiltersFromJSON(json, player.getFilterChain())
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}/pause")
-    fun playerPause(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerPause(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        player.setPause(JSONObject(body).getBoolean("pause"))
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val pause = JSONObject(body).getBoolean("pause")
+        return withExistingPlayer(context, guildId) { player ->
+            player.setPause(pause)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}/seek")
-    fun playerSeek(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerSeek(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        player.seekTo(JSONObject(body).getLong("position"))
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val position = JSONObject(body).getLong("position")
+        return withExistingPlayer(context, guildId) { player ->
+            player.seekTo(position)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}/services")
-    fun playerServices(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerServices(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        player.getServicesHandler().parseJSON(JSONObject(body))
-        return ResponseEntity.ok(player.getState().toString())
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val json = JSONObject(body)
+        return withExistingPlayer(context, guildId) { player ->
+            player.getServicesHandler().parseJSON(json)
+            ResponseEntity.ok(player.getState().toString())
+        }
     }
 
     @PatchMapping("/players/{guildId}/volume")
-    fun playerVolume(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): ResponseEntity<String> {
+    fun playerVolume(request: HttpServletRequest, @PathVariable("guildId") guildId: String, @RequestBody body: String): CompletableFuture<ResponseEntity<String>> {
         val context = getExistingContext(request.getHeader("Session-Id"))
-        if (context == null) return ResponseEntity(HttpStatus.NOT_FOUND)
+        if (context == null) return completed(HttpStatus.NOT_FOUND)
+        if (body.isBlank()) return completed(HttpStatus.BAD_REQUEST)
+        val volume = JSONObject(body).getInt("volume")
+        return withExistingPlayer(context, guildId) { player ->
+            player.setVolume(volume)
+            ResponseEntity.ok(player.getState().toString())
+        }
+    }
+
+    /**
+     * Runs [command] in the mailbox of the guild, so it is applied in order with the commands sent for the guild over
+     * the websocket and in batches, never concurrently with them
+     *
+     * @return the response of [command], or 503 if the session closes before it runs
+     */
+    private fun <T> inMailbox(
+        context: SocketContext,
+        guildId: String,
+        command: () -> ResponseEntity<T>
+    ): CompletableFuture<ResponseEntity<T>> {
+        val future = CompletableFuture<ResponseEntity<T>>()
+        context.mailboxes.submit(guildId.toLong(), { future.complete(ResponseEntity(HttpStatus.SERVICE_UNAVAILABLE)) }) {
+            try {
+                future.complete(command())
+            } catch (e: Exception) {
+                future.completeExceptionally(e)
+            }
+        }
+        return future
+    }
+
+    /**
+     * Like [inMailbox], for commands on an existing player. Responds with 404 if there is none by the time it runs
+     */
+    private fun <T> withExistingPlayer(
+        context: SocketContext,
+        guildId: String,
+        command: (Player) -> ResponseEntity<T>
+    ): CompletableFuture<ResponseEntity<T>> = inMailbox(context, guildId) {
         val player = getExistingPlayer(guildId, context)
-        if (player == null) return ResponseEntity(HttpStatus.NOT_FOUND)
-        if (body.isBlank()) return ResponseEntity(HttpStatus.BAD_REQUEST)
-        player.setVolume(JSONObject(body).getInt("volume"))
-        return ResponseEntity.ok(player.getState().toString())
+        if (player == null) ResponseEntity(HttpStatus.NOT_FOUND) else command(player)
     }
 
+    private fun <T> completed(status: HttpStatus): CompletableFuture<ResponseEntity<T>> =
+        CompletableFuture.completedFuture(ResponseEntity(status))
+
     private fun getOrCreatePlayer(guildId: String, context: SocketContext?): Player? {
         if (context == null) return null;
         return context.getPlayer(guildId)
@@ -0,0 +1,78 @@
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import lavalink.server.util.CborCodec
+import org.json.JSONObject
+import java.nio.charset.StandardCharsets
+import java.util.*
+
+/**
+ * The most recent sequenced messages of a session, kept so that a resuming client only gets the messages it has not
+ * seen. Messages are kept as they were encoded for the wire. They are removed once the client acknowledges them, or
+ * oldest first when more than [capacity] messages or more than [maxBytes] bytes are kept.
+ */
+class ReplayBuffer(private val capacity: Int, private val maxBytes: Long) {
+
+    companion object {
+        private val evicted = Counter.build()
+            .name("lavalink_replay_buffer_evicted_total")
+            .help("Sequenced messages removed from replay buffers before the client acknowledged them")
+            .register()
+    }
+
+    /**
+     * A sequenced message as it was sent, in the encoding the session used at the time
+     */
+    class Message(val seq: Long, val encoding: PayloadEncoding, val data: ByteArray) {
+
+        /**
+         * @return the message in [target], converted if the client resumed with another encoding
+         */
+        fun encodedAs(target: PayloadEncoding): ByteArray = when {
+            target == encoding -> data
+            encoding == PayloadEncoding.CBOR ->
+                CborCodec.decode(data, 0, data.size).toString().toByteArray(StandardCharsets.UTF_8)
+            else -> CborCodec.encode(JSONObject(String(data, StandardCharsets.UTF_8)))
+        }
+    }
+
+    private val messages = ArrayDeque<Message>()
+    private var bytes = 0L
+
+    /**
+     * @param message a message with a seq greater than that of all previous messages
+     */
+    @Synchronized
+    fun add(message: Message) {
+        if (capacity <= 0 || maxBytes <= 0) return
+        messages.addLast(message)
+        bytes += message.data.size
+        while (messages.size > capacity || bytes > maxBytes) {
+            removeFirst()
+            evicted.inc()
+        }
+    }
+
+    /**
+     * Removes all messages up to and including [seq]
+     */
+    @Synchronized
+    fun ack(seq: Long) {
+        while (messages.isNotEmpty() && messages.first.seq <= seq) removeFirst()
+    }
+
+    /**
+     * @param lastSeq the seq of the last message that was sent
+     * @return the messages after [seq], or null if some of them are no longer kept
+     */
+    @Synchronized
+    fun since(seq: Long, lastSeq: Long): List<Message>? {
+        ack(seq)
+        val first = messages.peekFirst()?.seq ?: lastSeq + 1
+        return if (first > seq + 1 && seq < lastSeq) null else messages.toList()
+    }
+
+    private fun removeFirst() {
+        bytes -= messages.removeFirst().data.size
+    }
+}
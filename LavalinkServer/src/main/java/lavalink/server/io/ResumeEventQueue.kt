@@ -0,0 +1,70 @@
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import org.json.JSONObject
+import org.slf4j.LoggerFactory
+import java.util.*
+
+/**
+ * Holds the messages of a paused session until it is resumed.
+ *
+ * Player state updates are not queued, since [SocketContext.resume] sends the current state of every player anyway.
+ * Other messages are kept in order up to [capacity], after which [overflow] decides which messages are dropped.
+ */
+class ResumeEventQueue(private val capacity: Int, private val overflow: Overflow) {
+
+    enum class Overflow {
+        /** Drop the oldest queued message to make room for the new one */
+        DROP_OLDEST,
+        /** Drop new messages while the queue is full */
+        DROP_NEWEST
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(ResumeEventQueue::class.java)
+
+        private val resumeEvents = Counter.build()
+            .name("lavalink_resume_queue_events_total")
+            .help("Messages sent while a session was paused, by what happened to them")
+            .labelNames("outcome")
+            .register()
+    }
+
+    private val queue = ArrayDeque<JSONObject>()
+    private var merged = 0
+    private var dropped = 0
+
+    @Synchronized
+    fun add(payload: JSONObject) {
+        if (SocketServer.playerUpdateGuilds(payload) != null) {
+            merged++
+            resumeEvents.labels("merged").inc()
+            return
+        }
+
+        if (queue.size >= capacity) {
+            if (dropped == 0) log.warn("Resume queue is full, dropping messages ({})", overflow)
+            dropped++
+            resumeEvents.labels("dropped").inc()
+            if (overflow == Overflow.DROP_NEWEST || queue.isEmpty()) return
+            queue.removeFirst()
+        }
+
+        queue.addLast(payload)
+        resumeEvents.labels("queued").inc()
+    }
+
+    /**
+     * Removes all queued messages and resets the statistics
+     */
+    @Synchronized
+    fun drain(): List<JSONObject> {
+        log.info("Replaying {} events, {} player updates were merged and {} events were dropped",
+            queue.size, merged, dropped)
+        val events = queue.toList()
+        queue.clear()
+        merged = 0
+        dropped = 0
+        return events
+    }
+}
@@ -0,0 +1,191 @@
+package lavalink.server.io
+
+import io.prometheus.client.Counter
+import io.prometheus.client.Gauge
+import io.prometheus.client.Histogram
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Tracks connected sessions by session ID and paused sessions by resume key and by their last session ID.
+ * The maps are concurrent, which stripes them internally, as they are changed from connection callbacks and from the
+ * expiry wheel alike.
+ *
+ * Paused sessions expire through a single hashed timing wheel instead of a future per session. Rescheduling or
+ * resuming a session does not touch the wheel; the stale entry is dropped when its slot comes around.
+ */
+class SessionRegistry(
+    executor: ScheduledExecutorService,
+    private val onExpired: (SocketContext) -> Unit
+) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(SessionRegistry::class.java)
+
+        /** Resolution of the wheel. Sessions may outlive their resume timeout by up to one tick */
+        private const val TICK_MS = 1000L
+        private const val WHEEL_SIZE = 64
+
+        private val sessions = Gauge.build()
+            .name("lavalink_sessions")
+            .help("Websocket sessions, either connected or paused awaiting resumption")
+            .labelNames("state")
+            .register()
+
+        private val pausedSessionOutcomes = Counter.build()
+            .name("lavalink_paused_sessions_total")
+            .help("How paused sessions ended: resumed, expired, or replaced by another session with the same key")
+            .labelNames("outcome")
+            .register()
+
+        private val resumeAttempts = Counter.build()
+            .name("lavalink_session_resume_attempts_total")
+            .help("Handshakes carrying a resume key, accepted if a paused session had that key")
+            .labelNames("outcome")
+            .register()
+
+        /** Observed by [SocketServer] */
+        internal val resumeDuration = Histogram.build()
+            .name("lavalink_session_resume_duration_seconds")
+            .help("Time taken to resume a session, including replaying the messages it missed")
+            .buckets(0.001, 0.005, 0.010, 0.025, 0.050, 0.100, 0.250, 0.500, 1.000)
+            .register()
+    }
+
+    private class Paused(val key: String, val sessionId: String?, val context: SocketContext, val deadlineTick: Long)
+
+    private val connected = ConcurrentHashMap<String, SocketContext>()
+    private val pausedByKey = ConcurrentHashMap<String, Paused>()
+    private val pausedById = ConcurrentHashMap<String, SocketContext>()
+    private val wheel = Array(WHEEL_SIZE) { ConcurrentHashMap.newKeySet<Paused>() }
+
+    private val startTime = System.nanoTime()
+    @Volatile
+    private var tick = 0L // Only written by the executor thread
+
+    init {
+        executor.scheduleAtFixedRate(::onTick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS)
+    }
+
+    val connectedContexts: Collection<SocketContext>
+        get() = connected.values
+
+    /** Connected and paused sessions */
+    val allContexts: Collection<SocketContext>
+        get() = connected.values + pausedByKey.values.map { it.context }
+
+    fun get(sessionId: String): SocketContext? = connected[sessionId] ?: pausedById[sessionId]
+
+    fun isPaused(resumeKey: String) = pausedByKey.containsKey(resumeKey)
+
+    fun addConnected(sessionId: String, context: SocketContext) {
+        if (connected.put(sessionId, context) == null) sessions.labels("connected").inc()
+    }
+
+    fun removeConnected(sessionId: String): SocketContext? {
+        return connected.remove(sessionId)?.also { sessions.labels("connected").dec() }
+    }
+
+    /**
+     * Keeps the session around for [SocketContext.resumeTimeout] seconds under its resume key.
+     *
+     * @return a previously paused session with the same key, which is no longer tracked
+     */
+    fun addPaused(context: SocketContext): SocketContext? {
+        val paused = newPaused(context.resumeKey!!, context.sessionId, context)
+        val replaced = pausedByKey.put(paused.key, paused)
+        paused.sessionId?.let { pausedById[it] = context }
+        schedule(paused)
+        if (replaced == null) {
+            sessions.labels("paused").inc()
+            return null
+        }
+
+        replaced.sessionId?.let { pausedById.remove(it, replaced.context) }
+        pausedSessionOutcomes.labels("replaced").inc()
+        return replaced.context
+    }
+
+    /**
+     * Gives a client which is about to resume a full timeout to complete its connection.
+     *
+     * @return false if there is no paused session with this key
+     */
+    fun extend(resumeKey: String): Boolean {
+        while (true) {
+            val paused = pausedByKey[resumeKey]
+            if (paused == null) {
+                resumeAttempts.labels("rejected").inc()
+                return false
+            }
+            val extended = newPaused(resumeKey, paused.sessionId, paused.context)
+            if (pausedByKey.replace(resumeKey, paused, extended)) {
+                schedule(extended)
+                resumeAttempts.labels("accepted").inc()
+                return true
+            }
+        }
+    }
+
+    /**
+     * Removes a paused session so that it can be resumed
+     */
+    fun claim(resumeKey: String): SocketContext? {
+        val paused = pausedByKey.remove(resumeKey) ?: return null
+        paused.sessionId?.let { pausedById.remove(it, paused.context) }
+        sessions.labels("paused").dec()
+        pausedSessionOutcomes.labels("resumed").inc()
+        return paused.context
+    }
+
+    private fun newPaused(key: String, sessionId: String?, context: SocketContext): Paused {
+        val ticks = TimeUnit.SECONDS.toMillis(context.resumeTimeout) / TICK_MS
+        return Paused(key, sessionId, context, tick + ticks.coerceAtLeast(1))
+    }
+
+    /**
+     * Must be called after the entry is in [pausedByKey], or the wheel may drop it as stale
+     */
+    private fun schedule(paused: Paused) {
+        wheel[(paused.deadlineTick % WHEEL_SIZE).toInt()].add(paused)
+    }
+
+    private fun onTick() {
+        try {
+            // Catch up on ticks we were late for, so no slot is skipped
+            val target = (System.nanoTime() - startTime) / TimeUnit.MILLISECONDS.toNanos(TICK_MS)
+            while (tick < target) {
+                tick++
+                expire(wheel[(tick % WHEEL_SIZE).toInt()])
+            }
+        } catch (e: Exception) {
+            log.error("Exception while expiring paused sessions", e)
+        }
+    }
+
+    private fun expire(slot: MutableSet<Paused>) {
+        val iterator = slot.iterator()
+        while (iterator.hasNext()) {
+            val paused = iterator.next()
+            val key = paused.key
+            if (pausedByKey[key] !== paused) {
+                iterator.remove() // Resumed, replaced or rescheduled
+                continue
+            }
+            if (paused.deadlineTick > tick) continue // Due in a later round
+            iterator.remove()
+            if (!pausedByKey.remove(key, paused)) continue
+
+            paused.sessionId?.let { pausedById.remove(it, paused.context) }
+            sessions.labels("paused").dec()
+            pausedSessionOutcomes.labels("expired").inc()
+            try {
+                onExpired(paused.context)
+            } catch (e: Exception) {
+                log.error("Exception while shutting down expired session with key {}", key, e)
+            }
+        }
+    }
+}
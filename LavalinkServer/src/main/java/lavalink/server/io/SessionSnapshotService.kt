@@ -0,0 +1,68 @@
+package lavalink.server.io
+
+import lavalink.server.config.ServerConfig
+import lavalink.server.config.SessionSnapshotConfig
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import java.nio.file.Paths
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import javax.annotation.PostConstruct
+import javax.annotation.PreDestroy
+
+/**
+ * Writes the resumable sessions to a file periodically and on shutdown, and restores them on startup, so that clients
+ * can resume their sessions after the node restarts.
+ */
+@Service
+class SessionSnapshotService(private val socketServer: SocketServer, serverConfig: ServerConfig) {
+
+    companion object {
+        private val log = LoggerFactory.getLogger(SessionSnapshotService::class.java)
+    }
+
+    private val config = serverConfig.sessionSnapshot ?: SessionSnapshotConfig()
+    private val file = SnapshotFile(Paths.get(config.path))
+    private var writeFuture: ScheduledFuture<*>? = null
+
+    @PostConstruct
+    fun start() {
+        if (!config.enabled) return
+        restore()
+        writeFuture = socketServer.contextExecutor
+            .scheduleAtFixedRate(::write, config.interval, config.interval, TimeUnit.SECONDS)
+    }
+
+    @PreDestroy
+    fun stop() {
+        if (!config.enabled) return
+        writeFuture?.cancel(false)
+        write()
+    }
+
+    private fun restore() {
+        val sessions = try {
+            file.readSessions(System.currentTimeMillis()) ?: return
+        } catch (e: Exception) {
+            log.error("Failed to read session snapshot from {}", file.path, e)
+            return
+        }
+
+        sessions.forEach { session ->
+            try {
+                socketServer.restoreSession(session)
+            } catch (e: Exception) {
+                log.error("Failed to restore session with key {}", session.optString("resumeKey"), e)
+            }
+        }
+    }
+
+    @Synchronized
+    private fun write() {
+        try {
+            file.write(socketServer.snapshotSessions(), System.currentTimeMillis())
+        } catch (e: Exception) {
+            log.error("Failed to write session snapshot to {}", file.path, e)
+        }
+    }
+}
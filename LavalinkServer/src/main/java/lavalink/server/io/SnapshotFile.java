@@ -0,0 +1,82 @@
+package lavalink.server.io;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The file holding a snapshot of the resumable sessions. It contains voice server tokens, so it is only readable by
+ * the owner on systems with POSIX permissions.
+ */
+class SnapshotFile {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotFile.class);
+
+    static final Set<PosixFilePermission> OWNER_ONLY =
+            EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+
+    private final Path path;
+
+    SnapshotFile(Path path) {
+        this.path = path;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Writes the sessions to a temporary file and renames it, so that a crash while writing leaves the previous
+     * snapshot intact
+     */
+    void write(JSONArray sessions, long savedAt) throws IOException {
+        JSONObject snapshot = new JSONObject()
+                .put("savedAt", savedAt)
+                .put("sessions", sessions);
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        }
+        Files.write(temp, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the sessions whose resume timeout has not passed since the snapshot was written, or null if there is
+     * no snapshot
+     */
+    @Nullable
+    List<JSONObject> readSessions(long now) throws IOException {
+        if (!Files.exists(path)) return null;
+
+        JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+        long age = now - snapshot.getLong("savedAt");
+        List<JSONObject> sessions = new ArrayList<>();
+        for (Object session : snapshot.getJSONArray("sessions")) {
+            JSONObject json = (JSONObject) session;
+            if (age > TimeUnit.SECONDS.toMillis(json.getLong("resumeTimeout"))) {
+                log.info("Not restoring session with key {}, its resume timeout has passed", json.optString("resumeKey"));
+            } else {
+                sessions.add(json);
+            }
+        }
+        return sessions;
+    }
+}
@@ -31,37 +31,40 @@ import dev.arbjerg.lavalink.api.AudioFilterExtension
 import dev.arbjerg.lavalink.api.ISocketContext
 import dev.arbjerg.lavalink.api.PluginEventHandler
 import dev.arbjerg.lavalink.api.WebSocketExtension
-import io.undertow.websockets.core.WebSocketCallback
-import io.undertow.websockets.core.WebSocketChannel
-import io.undertow.websockets.core.WebSockets
+import io.prometheus.client.Counter
 import io.undertow.websockets.jsr.UndertowSession
+import lavalink.server.config.ResumeQueueConfig
 import lavalink.server.config.ServerConfig
+import lavalink.server.player.FrameAccounting
 import lavalink.server.player.Player
+import lavalink.server.player.broadcast.BroadcastManager
+import lavalink.server.player.cache.OpusFrameCache
+import lavalink.server.util.PayloadWriter
 import moe.kyokobot.koe.KoeClient
 import moe.kyokobot.koe.KoeEventAdapter
 import moe.kyokobot.koe.MediaConnection
 import moe.kyokobot.koe.internal.json.JsonObject
+import org.json.JSONArray
 import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import org.springframework.web.socket.CloseStatus
 import org.springframework.web.socket.WebSocketSession
 import org.springframework.web.socket.adapter.standard.StandardWebSocketSession
 import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentLinkedQueue
-import java.util.concurrent.Executors
-import java.util.concurrent.ScheduledExecutorService
-import java.util.concurrent.ScheduledFuture
-import java.util.concurrent.TimeUnit
 
 class SocketContext(
     val audioPlayerManager: AudioPlayerManager,
     val serverConfig: ServerConfig,
-    private var session: WebSocketSession,
+    /** Null for sessions restored from a snapshot, until a client resumes them */
+    private var session: WebSocketSession?,
     private val socketServer: SocketServer,
     val userId: String,
     val koe: KoeClient,
+    val playerUpdateScheduler: PlayerUpdateScheduler,
+    commandExecutor: GuildCommandExecutor,
     eventHandlers: Collection<PluginEventHandler>,
     webSocketExtensions: List<WebSocketExtension>,
     val filterExtensions: List<AudioFilterExtension>
@@ -70,6 +73,12 @@ class SocketContext(
 
     companion object {
         private val log = LoggerFactory.getLogger(SocketContext::class.java)
+
+        private val sentPayloadSize = Counter.build()
+            .name("lavalink_websocket_sent_payload_size_total")
+            .help("Size of payloads sent to websocket clients, in bytes")
+            .labelNames("encoding")
+            .register()
     }
 
     //guildId <-> Player
@@ -78,17 +87,72 @@ class SocketContext(
     val eventEmitter = EventEmitter(this, eventHandlers)
     val wsHandler = WebSocketHandler(this, webSocketExtensions, filterExtensions)
     val playerHandler = PlayerFunHandlers(this)
+    val mailboxes = commandExecutor.newMailboxes()
 
     @Volatile
     var sessionPaused = false
-    private val resumeEventQueue = ConcurrentLinkedQueue<String>()
+
+    /** Whether periodic player updates are sent as a single playerUpdates message. Negotiated at handshake */
+    @Volatile
+    var batchPlayerUpdates = false
+
+    /** Whether player updates omit unchanged filters, services and frame stats. Negotiated at handshake */
+    @Volatile
+    var deltaPlayerUpdates = false
+
+    /** Bits of the [EventType]s this session subscribed to */
+    @Volatile
+    var eventMask = EventType.ALL
+
+    /** Wire format used for this session. Negotiated at handshake */
+    @Volatile
+    var payloadEncoding = PayloadEncoding.JSON
+    private val resumeEventQueue = (serverConfig.resumeQueue ?: ResumeQueueConfig()).let { config ->
+        val overflow = ResumeEventQueue.Overflow.values().find { it.name.replace("_", "").equals(config.overflow, true) }
+            ?: ResumeEventQueue.Overflow.DROP_OLDEST.also { log.warn("Unknown resume queue overflow '{}'", config.overflow) }
+        ResumeEventQueue(config.capacity.coerceAtLeast(0), overflow)
+    }
+
+    private val replayBuffer = (serverConfig.resumeQueue ?: ResumeQueueConfig()).let { config ->
+        ReplayBuffer(config.replayCapacity, config.replayMaxSizeKb * 1024L)
+    }
+    /** The last seq handed out. Guarded by [replayBuffer] */
+    private var lastSeq = 0L
+    /** The last seq handed to the wire. Guarded by [replayBuffer] */
+    private var deliveredSeq = 0L
+    /** Messages encoded ahead of an earlier seq, waiting for their turn. Guarded by [replayBuffer] */
+    private val encodedAhead = HashMap<Long, Sequenced>()
+
+    /** A numbered message, with a null [message] if it could not be encoded */
+    private class Sequenced(val payload: JSONObject, val message: ReplayBuffer.Message?)
+
+    private val outboundQueue = OutboundQueue(serverConfig.outboundHighWaterMark) { guildIds ->
+        socketServer.contextExecutor.execute {
+            // The client missed these updates, so send complete ones
+            val deferred = guildIds.mapNotNull { players[it] }
+            deferred.forEach { it.resetDeltaState() }
+            SocketServer.sendPlayerUpdates(this, deferred)
+        }
+    }
+
+    val frameCache: OpusFrameCache
+        get() = socketServer.frameCache
+
+    val broadcasts: BroadcastManager
+        get() = socketServer.broadcasts
+
+    val frameAccounting: FrameAccounting
+        get() = socketServer.frameAccounting
+
+    /** The ID of the current websocket session, or of the last one while paused */
+    val sessionId: String?
+        get() = session?.id
 
     /** Null means disabled. See implementation notes */
     var resumeKey: String? = null
     var resumeTimeout = 60L // Seconds
-    private var sessionTimeoutFuture: ScheduledFuture<Unit>? = null
-    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
-    val playerUpdateService: ScheduledExecutorService
+
+    val playerCounters = PlayerCounters(socketServer.playerCounters)
 
     val playingPlayers: List<Player>
         get() {
@@ -99,23 +163,21 @@ class SocketContext(
 
 
     init {
-        executor.scheduleAtFixedRate(StatsTask(this, socketServer), 0, 1, TimeUnit.MINUTES)
-
-        playerUpdateService = Executors.newScheduledThreadPool(2) { r ->
-            val thread = Thread(r)
-            thread.name = "player-update"
-            thread.isDaemon = true
-            thread
+        session?.let {
+            sendMessage(
+                JSONObject()
+                .put("op", "hello")
+                .put("sessionId", it.id)
+                .put("info", info())
+            )
         }
-
-        sendMessage(
-            JSONObject()
-            .put("op", "hello")
-            .put("sessionId", session.id)
-            .put("info", info())
-        )
     }
 
+    /**
+     * Checked before building an event, so that events nobody listens to cost nothing
+     */
+    fun wants(type: EventType) = eventMask and type.bit != 0L
+
     fun getPlayer(guildId: String) = getPlayer(guildId.toLong())
 
     override fun getPlayer(guildId: Long) = players.computeIfAbsent(guildId) {
@@ -166,9 +228,6 @@ class SocketContext(
 
     fun pause() {
         sessionPaused = true
-        sessionTimeoutFuture = executor.schedule<Unit>({
-            socketServer.onSessionResumeTimeout(this)
-        }, resumeTimeout, TimeUnit.SECONDS)
         eventEmitter.onSocketContextPaused()
     }
 
@@ -177,37 +236,156 @@ class SocketContext(
     }
 
     override fun getState(): ISocketContext.State = when {
-        session.isOpen -> ISocketContext.State.OPEN
+        session?.isOpen == true -> ISocketContext.State.OPEN
         sessionPaused -> ISocketContext.State.RESUMABLE
         else -> ISocketContext.State.DESTROYED
     }
 
     /**
-     * Either sends the payload now or queues it up
+     * Either sends the payload now or queues it up. Messages other than player updates are numbered with a `seq`
+     * field, which the client uses to acknowledge them and to resume without missing any.
+     */
+    fun send(payload: JSONObject) {
+        if (SocketServer.playerUpdateGuilds(payload) != null) return deliver(payload)
+
+        // Only numbering and handing over take the lock, messages are encoded in parallel
+        val seq = synchronized(replayBuffer) { ++lastSeq }
+        val encoding = payloadEncoding
+        val message = try {
+            ReplayBuffer.Message(seq, encoding, PayloadWriter.write(payload, encoding.factory, seq).toByteArray())
+        } catch (e: Exception) {
+            log.error("Failed to encode message {}", seq, e)
+            null
+        }
+
+        // Plugins observe outgoing messages as JSON text. A failing plugin must not keep the seq from being handed over
+        if (eventEmitter.hasListeners) {
+            try {
+                eventEmitter.onWebSocketMessageOut(
+                    if (message?.encoding == PayloadEncoding.JSON) String(message.data, StandardCharsets.UTF_8)
+                    else payload.toString()
+                )
+            } catch (e: Exception) {
+                log.error("Exception in plugin observing message {}", seq, e)
+            }
+        }
+
+        // Clients acknowledge the highest seq they have seen, so messages must reach the wire in seq order
+        synchronized(replayBuffer) {
+            encodedAhead[seq] = Sequenced(payload, message)
+            while (true) {
+                val next = encodedAhead.remove(deliveredSeq + 1) ?: break
+                deliveredSeq++
+                val encoded = next.message ?: continue
+                replayBuffer.add(encoded)
+                try {
+                    deliver(encoded, next.payload)
+                } catch (e: Exception) {
+                    // Kept for a replay, later messages still go out
+                    log.error("Failed to deliver message {}", encoded.seq, e)
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the resume settings and the players of this session, as read by [restore]
      */
-    fun send(payload: JSONObject) = send(payload.toString())
+    fun snapshot(): JSONObject {
+        val snapshots = JSONArray()
+        players.values.forEach { snapshots.put(it.snapshot()) }
+        return JSONObject()
+            .put("userId", userId)
+            .put("resumeKey", resumeKey)
+            .put("resumeTimeout", resumeTimeout)
+            .put("seq", synchronized(replayBuffer) { lastSeq })
+            .put("players", snapshots)
+    }
 
-    private fun send(payload: String) {
-        eventEmitter.onWebSocketMessageOut(payload)
+    /**
+     * Recreates the players of a snapshot made by [snapshot]. The resume settings are left to the caller
+     */
+    fun restore(snapshot: JSONObject) {
+        synchronized(replayBuffer) {
+            lastSeq = snapshot.getLong("seq")
+            deliveredSeq = lastSeq
+        }
+        snapshot.getJSONArray("players").forEach {
+            val json = it as JSONObject
+            try {
+                playerHandler.update(json, getPlayer(json.getString("guildId")))
+            } catch (e: Exception) {
+                log.error("Failed to restore player for guild {}", json.optString("guildId"), e)
+            }
+        }
+    }
 
-        if (sessionPaused) {
-            resumeEventQueue.add(payload)
+    /**
+     * @return the full state of a player, which [importPlayers] on this or another node turns back into a player
+     */
+    fun exportPlayer(guildId: Long): JSONObject? = players[guildId]?.snapshot()
+
+    /**
+     * Creates or updates players from states made by [exportPlayer]
+     *
+     * @return the result of each import, see [PlayerFunHandlers.batch]
+     */
+    fun importPlayers(exports: JSONArray) = playerHandler.batch(exports)
+
+    /**
+     * Removes messages the client has seen from the replay buffer
+     */
+    fun acknowledge(seq: Long) = replayBuffer.ack(seq)
+
+    /**
+     * Sends a sequenced message, or queues it up while paused. Called under the [replayBuffer] lock in seq order
+     *
+     * @param payload the message before it was encoded, or null if it is being replayed
+     */
+    private fun deliver(message: ReplayBuffer.Message, payload: JSONObject?) {
+        val session = session
+        if (sessionPaused || session == null || !session.isOpen) {
+            if (sessionPaused && payload != null) {
+                resumeEventQueue.add(JSONObject(payload, *JSONObject.getNames(payload)).put("seq", message.seq))
+            }
             return
         }
 
-        if (!session.isOpen) return
+        val encoding = payloadEncoding
+        val data = message.encodedAs(encoding)
+        sentPayloadSize.labels(encoding.headerValue).inc(data.size.toDouble())
+        log.trace("Sending message {}", message.seq)
+        val channel = ((session as StandardWebSocketSession).nativeSession as UndertowSession).webSocketChannel
+        outboundQueue.enqueue(channel, PayloadWriter.copyTo(data, channel.bufferPool), encoding == PayloadEncoding.CBOR)
+    }
 
-        val undertowSession = (session as StandardWebSocketSession).nativeSession as UndertowSession
-        WebSockets.sendText(payload, undertowSession.webSocketChannel,
-            object : WebSocketCallback<Void> {
-                override fun complete(channel: WebSocketChannel, context: Void?) {
-                    log.trace("Sent {}", payload)
-                }
+    private fun deliver(payload: JSONObject) {
+        val session = session
+        if (sessionPaused || session == null || !session.isOpen) {
+            if (eventEmitter.hasListeners) eventEmitter.onWebSocketMessageOut(payload.toString())
+            if (sessionPaused) resumeEventQueue.add(payload)
+            return
+        }
 
-                override fun onError(channel: WebSocketChannel, context: Void?, throwable: Throwable) {
-                    log.error("Error", throwable)
-                }
-            })
+        if (outboundQueue.isSlow) {
+            val guilds = SocketServer.playerUpdateGuilds(payload)
+            if (guilds != null) return outboundQueue.defer(guilds)
+        }
+
+        val encoding = payloadEncoding
+        val buffer = PayloadWriter.write(payload, encoding.factory)
+        sentPayloadSize.labels(encoding.headerValue).inc(buffer.size().toDouble())
+
+        // Plugins observe outgoing messages as JSON text
+        if (eventEmitter.hasListeners) {
+            eventEmitter.onWebSocketMessageOut(
+                if (encoding == PayloadEncoding.JSON) buffer.toUtf8String() else payload.toString()
+            )
+        }
+
+        log.trace("Sending {}", payload)
+        val channel = ((session as StandardWebSocketSession).nativeSession as UndertowSession).webSocketChannel
+        outboundQueue.enqueue(channel, buffer.copyTo(channel.bufferPool), encoding == PayloadEncoding.CBOR)
     }
 
     private fun info(): JSONObject {
@@ -234,28 +412,39 @@ class SocketContext(
     }
 
     /**
-     * @return true if we can resume, false otherwise
+     * @param resumeSeq the last message the client has seen, if it told us. Otherwise every message that was queued
+     * while paused is replayed
      */
-    fun stopResumeTimeout() = sessionTimeoutFuture?.cancel(false) ?: false
-
-    fun resume(session: WebSocketSession) {
-        sessionPaused = false
-        this.session = session
-        log.info("Replaying ${resumeEventQueue.size} events")
-
-        // Bulk actions are not guaranteed to be atomic, so we need to do this imperatively
-        while (resumeEventQueue.isNotEmpty()) {
-            send(resumeEventQueue.remove())
+    fun resume(session: WebSocketSession, resumeSeq: Long?) {
+        // Sequenced messages sent by other threads must wait until the replay is done
+        synchronized(replayBuffer) {
+            sessionPaused = false
+            this.session = session
+            val queued = resumeEventQueue.drain()
+            val missed = resumeSeq?.let { replayBuffer.since(it, deliveredSeq) }
+            if (resumeSeq != null && missed == null) {
+                log.warn("Messages after seq {} are no longer kept, replaying the {} queued while paused",
+                    resumeSeq, queued.size)
+            }
+            if (missed != null) {
+                log.info("Replaying {} messages", missed.size)
+                missed.forEach { deliver(it, null) }
+            } else {
+                log.info("Replaying {} messages", queued.size)
+                queued.forEach { deliver(it) }
+            }
         }
 
-        players.values.forEach { SocketServer.sendPlayerUpdate(this, it) }
+        // The client may have missed updates while we were paused
+        players.values.forEach { it.resetDeltaState() }
+        SocketServer.sendPlayerUpdates(this, players.values)
         send(JSONObject().put("op", "resume").put("sessionId", session.id))
     }
 
     internal fun shutdown() {
-        log.info("Shutting down " + playingPlayers.size + " playing players.")
-        executor.shutdown()
-        playerUpdateService.shutdown()
+        log.info("Shutting down " + playerCounters.playing + " playing players.")
+        mailboxes.close()
+        outboundQueue.close()
         players.values.forEach {
             this.destroyPlayer(it.guildId)
         }
@@ -264,7 +453,7 @@ class SocketContext(
     }
 
     override fun closeWebSocket(closeCode: Int, reason: String?) {
-        session.close(CloseStatus(closeCode, reason))
+        session?.close(CloseStatus(closeCode, reason))
     }
 
     override fun closeWebSocket(closeCode: Int) {
@@ -272,49 +461,57 @@ class SocketContext(
     }
 
     override fun closeWebSocket() {
-        session.close()
+        session?.close()
     }
 
     private inner class WsEventHandler(private val player: Player) : KoeEventAdapter() {
         override fun gatewayClosed(code: Int, reason: String?, byRemote: Boolean) {
-            val out = JSONObject()
-            out.put("op", "event")
-            out.put("event", "VoiceConnectionClosed")
-            out.put("guildId", player.guildId.toString())
-            out.put("reason", reason ?: JSONObject.NULL)
-            out.put("code", code)
-            out.put("byRemote", byRemote)
-
-            send(out)
+            if (wants(EventType.VOICE_CONNECTION_CLOSED)) {
+                val out = JSONObject()
+                out.put("op", "event")
+                out.put("event", "VoiceConnectionClosed")
+                out.put("guildId", player.guildId.toString())
+                out.put("reason", reason ?: JSONObject.NULL)
+                out.put("code", code)
+                out.put("byRemote", byRemote)
+
+                send(out)
+            }
 
             SocketServer.sendPlayerUpdate(this@SocketContext, player)
         }
 
         override fun gatewayReady(target: InetSocketAddress, ssrc: Int) {
-            val out = JSONObject()
-            out.put("op", "event")
-            out.put("event", "VoiceConnectionReady")
-            out.put("guildId", player.guildId.toString())
-            out.put("ssrc", ssrc)
-            out.put("address", target.getAddress().toString())
+            if (wants(EventType.VOICE_CONNECTION_READY)) {
+                val out = JSONObject()
+                out.put("op", "event")
+                out.put("event", "VoiceConnectionReady")
+                out.put("guildId", player.guildId.toString())
+                out.put("ssrc", ssrc)
+                out.put("address", target.getAddress().toString())
 
-            send(out)
+                send(out)
+            }
 
             SocketServer.sendPlayerUpdate(this@SocketContext, player)
         }
 
         override fun gatewayResumed() {
-            val out = JSONObject()
-            out.put("op", "event")
-            out.put("event", "VoiceConnectionResumed")
-            out.put("guildId", player.guildId.toString())
+            if (wants(EventType.VOICE_CONNECTION_RESUMED)) {
+                val out = JSONObject()
+                out.put("op", "event")
+                out.put("event", "VoiceConnectionResumed")
+                out.put("guildId", player.guildId.toString())
 
-            send(out)
+                send(out)
+            }
 
             SocketServer.sendPlayerUpdate(this@SocketContext, player)
         }
 
         override fun userConnected(id: String, audioSSRC: Int, videoSSRC: Int, rtxSSRC: Int) {
+            if (!wants(EventType.VOICE_USER_CONNECTED)) return
+
             val out = JSONObject()
             out.put("op", "event")
             out.put("event", "VoiceUserConnected")
@@ -328,6 +525,8 @@ class SocketContext(
         }
 
         override fun userDisconnected(id: String) {
+            if (!wants(EventType.VOICE_USER_DISCONNECTED)) return
+
             val out = JSONObject()
             out.put("op", "event")
             out.put("event", "VoiceUserDisconnected")
@@ -338,6 +537,8 @@ class SocketContext(
         }
 
         override fun externalIPDiscovered(target: InetSocketAddress) {
+            if (!wants(EventType.VOICE_EXTERNAL_IP_DISCOVERED)) return
+
             val out = JSONObject()
             out.put("op", "event")
             out.put("event", "VoiceExternalIpDiscovered")
@@ -348,6 +549,8 @@ class SocketContext(
         }
 
         override fun sessionDescription(session: JsonObject) {
+            if (!wants(EventType.VOICE_SESSION_DESCRIPTION)) return
+
             val out = JSONObject()
             out.put("op", "event")
             out.put("event", "VoiceSessionDescription")
@@ -26,41 +26,86 @@ import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager
 import dev.arbjerg.lavalink.api.AudioFilterExtension
 import dev.arbjerg.lavalink.api.PluginEventHandler
 import dev.arbjerg.lavalink.api.WebSocketExtension
+import io.prometheus.client.Counter
 import lavalink.server.config.ServerConfig
+import lavalink.server.player.FrameAccounting
 import lavalink.server.player.Player
+import lavalink.server.player.broadcast.BroadcastManager
+import lavalink.server.player.cache.OpusFrameCache
 import moe.kyokobot.koe.Koe
 import moe.kyokobot.koe.KoeOptions
+import org.json.JSONArray
 import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Service
+import org.springframework.web.socket.BinaryMessage
 import org.springframework.web.socket.CloseStatus
 import org.springframework.web.socket.TextMessage
 import org.springframework.web.socket.WebSocketSession
-import org.springframework.web.socket.handler.TextWebSocketHandler
-import java.util.concurrent.ConcurrentHashMap
+import org.springframework.web.socket.handler.AbstractWebSocketHandler
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
 @Service
 class SocketServer(
         private val serverConfig: ServerConfig,
         private val audioPlayerManager: AudioPlayerManager,
         koeOptions: KoeOptions,
+        private val playerUpdateScheduler: PlayerUpdateScheduler,
+        private val commandExecutor: GuildCommandExecutor,
+        val frameCache: OpusFrameCache,
+        val broadcasts: BroadcastManager,
+        val frameAccounting: FrameAccounting,
         private val eventHandlers: List<PluginEventHandler>,
         private val webSocketExtensions: List<WebSocketExtension>,
         private val filterExtensions: List<AudioFilterExtension>
-) : TextWebSocketHandler() {
+) : AbstractWebSocketHandler() {
 
-    // userId <-> shardCount
-    val contextMap = ConcurrentHashMap<String, SocketContext>()
-    private val resumableSessions = mutableMapOf<String, SocketContext>()
     private val koe = Koe.koe(koeOptions)
+    private val lastSampledLog = AtomicLong(System.nanoTime() - MESSAGE_LOG_INTERVAL_NANOS)
+
+    /** Runs the node-wide stats task and the expiry of paused sessions */
+    internal val contextExecutor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { r ->
+        val thread = Thread(r)
+        thread.name = "socket-context"
+        thread.isDaemon = true
+        thread
+    }
+    private val sessions = SessionRegistry(contextExecutor, ::onSessionResumeTimeout)
+    private val statsTask = StatsTask(this)
+    /** Players of all sessions, including those awaiting resumption */
+    val playerCounters = PlayerCounters()
+
+    init {
+        val interval = serverConfig.statsInterval.coerceAtLeast(MIN_STATS_INTERVAL).toLong()
+        contextExecutor.scheduleAtFixedRate(statsTask, 0, interval, TimeUnit.SECONDS)
+    }
 
     companion object {
         private val log = LoggerFactory.getLogger(SocketServer::class.java)
 
+        private val receivedPayloadSize = Counter.build()
+            .name("lavalink_websocket_received_payload_size_total")
+            .help("Size of payloads received from websocket clients, in characters for JSON and bytes for CBOR")
+            .labelNames("encoding")
+            .register()
+
+        private val receivedMessages = Counter.build()
+            .name("lavalink_websocket_received_messages_total")
+            .help("Messages received from websocket clients")
+            .labelNames("op")
+            .register()
+
+        private val MESSAGE_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1)
+        private const val MIN_STATS_INTERVAL = 2 // Seconds
+
         fun sendPlayerUpdate(socketContext: SocketContext, player: Player) {
+            if (!socketContext.wants(EventType.PLAYER_UPDATE)) return
             val json = JSONObject()
 
-            val state = player.state
+            val state = stateOf(socketContext, player)
 
             json.put("op", "event")
             json.put("event", "PlayerStateUpdate")
@@ -68,24 +113,70 @@ class SocketServer(
             json.put("state", state)
             socketContext.send(json)
         }
+
+        /**
+         * Sends the state of all given players, batched into a single message if the client negotiated it
+         */
+        fun sendPlayerUpdates(socketContext: SocketContext, players: Collection<Player>) {
+            if (!socketContext.wants(EventType.PLAYER_UPDATE)) return
+            if (!socketContext.batchPlayerUpdates) {
+                players.forEach { sendPlayerUpdate(socketContext, it) }
+                return
+            }
+
+            val updates = JSONArray()
+            players.forEach {
+                updates.put(JSONObject()
+                    .put("guildId", it.guildId.toString())
+                    .put("state", stateOf(socketContext, it)))
+            }
+
+            socketContext.send(JSONObject()
+                .put("op", "playerUpdates")
+                .put("updates", updates))
+        }
+
+        /**
+         * @return the guilds a player update message is about, or null if the message is not a player update
+         */
+        fun playerUpdateGuilds(payload: JSONObject): List<Long>? = when {
+            payload.optString("op") == "playerUpdates" -> payload.getJSONArray("updates").map {
+                (it as JSONObject).getString("guildId").toLong()
+            }
+            payload.optString("op") == "event" && payload.optString("event") == "PlayerStateUpdate" ->
+                listOf(payload.getString("guildId").toLong())
+            else -> null
+        }
+
+        private fun stateOf(socketContext: SocketContext, player: Player) =
+            if (socketContext.deltaPlayerUpdates) player.deltaState else player.state
     }
 
     val contexts: Collection<SocketContext>
-        get() = contextMap.values
+        get() = sessions.connectedContexts
 
     @Suppress("UastIncorrectHttpHeaderInspection")
     override fun afterConnectionEstablished(session: WebSocketSession) {
         val userId = session.handshakeHeaders.getFirst("User-Id")!!
         val resumeKey = session.handshakeHeaders.getFirst("Resume-Key")
+        val resumeSeq = session.handshakeHeaders.getFirst("Resume-Seq")?.toLongOrNull()
         val clientName = session.handshakeHeaders.getFirst("Client-Name")
         val userAgent = session.handshakeHeaders.getFirst("User-Agent")
+        val batchPlayerUpdates = session.handshakeHeaders.getFirst("Batch-Player-Updates")?.toBoolean() ?: false
+        val deltaPlayerUpdates = session.handshakeHeaders.getFirst("Delta-Player-Updates")?.toBoolean() ?: false
+        val payloadEncoding = session.attributes[PayloadEncoding.ATTRIBUTE] as PayloadEncoding? ?: PayloadEncoding.JSON
 
         var resumable: SocketContext? = null
-        if (resumeKey != null) resumable = resumableSessions.remove(resumeKey)
+        if (resumeKey != null) resumable = sessions.claim(resumeKey)
 
         if (resumable != null) {
-            contextMap[session.id] = resumable
-            resumable.resume(session)
+            val timer = SessionRegistry.resumeDuration.startTimer()
+            sessions.addConnected(session.id, resumable)
+            resumable.batchPlayerUpdates = batchPlayerUpdates
+            resumable.deltaPlayerUpdates = deltaPlayerUpdates
+            resumable.payloadEncoding = payloadEncoding
+            resumable.resume(session, resumeSeq)
+            timer.observeDuration()
             log.info("Resumed session with key $resumeKey")
             resumable.eventEmitter.onWebSocketOpen(true)
             return
@@ -98,11 +189,17 @@ class SocketServer(
                 this,
                 userId,
                 koe.newClient(userId.toLong()),
+                playerUpdateScheduler,
+                commandExecutor,
                 eventHandlers,
                 webSocketExtensions,
                 filterExtensions
         )
-        contextMap[session.id] = socketContext
+        socketContext.batchPlayerUpdates = batchPlayerUpdates
+        socketContext.deltaPlayerUpdates = deltaPlayerUpdates
+        socketContext.payloadEncoding = payloadEncoding
+        sessions.addConnected(session.id, socketContext)
+        statsTask.sendTo(socketContext)
         socketContext.eventEmitter.onWebSocketOpen(false)
 
         if (clientName != null) {
@@ -119,16 +216,15 @@ class SocketServer(
     }
 
     override fun afterConnectionClosed(session: WebSocketSession?, status: CloseStatus?) {
-        val context = contextMap.remove(session!!.id) ?: return
+        val context = sessions.removeConnected(session!!.id) ?: return
         if (context.resumeKey != null) {
-            resumableSessions.remove(context.resumeKey!!)?.let { removed ->
+            context.pause()
+            sessions.addPaused(context)?.let { removed ->
                 log.warn("Shutdown resumable session with key ${removed.resumeKey} because it has the same key as a " +
                         "newly disconnected resumable session.")
                 removed.shutdown()
             }
 
-            resumableSessions[context.resumeKey!!] = context
-            context.pause()
             log.info("Connection closed from {} with status {} -- " +
                     "Session can be resumed within the next {} seconds with key {}",
                     session.remoteAddress,
@@ -144,38 +240,112 @@ class SocketServer(
     }
 
     fun getExistingContext(id: String): SocketContext? {
-        return contextMap.get(id) ?: resumableSessions.get(id)
+        return sessions.get(id)
     }
 
     override fun handleTextMessage(session: WebSocketSession?, message: TextMessage?) {
         try {
-            handleTextMessageSafe(session!!, message!!)
+            receivedPayloadSize.labels(PayloadEncoding.JSON.headerValue).inc(message!!.payloadLength.toDouble())
+            val text = message.payload
+            handleMessageSafe(session!!, InboundMessage.fromText(text)) { text }
         } catch (e: Exception) {
             log.error("Exception while handling websocket message", e)
         }
 
     }
 
-    private fun handleTextMessageSafe(session: WebSocketSession, message: TextMessage) {
-        val json = JSONObject(message.payload)
+    override fun handleBinaryMessage(session: WebSocketSession?, message: BinaryMessage?) {
+        try {
+            receivedPayloadSize.labels(PayloadEncoding.CBOR.headerValue).inc(message!!.payloadLength.toDouble())
+            // Copied, as the message may be parsed in a guild's mailbox after Undertow has reused its buffer
+            val buffer = message.payload
+            val bytes = ByteArray(buffer.remaining())
+            buffer.get(bytes)
+            val inbound = InboundMessage.fromCbor(bytes, 0, bytes.size)
+            handleMessageSafe(session!!, inbound) { inbound.json.toString() }
+        } catch (e: Exception) {
+            log.error("Exception while handling websocket message", e)
+        }
+    }
 
-        log.info(message.payload)
+    /**
+     * @param text the message as JSON text, only built if something needs it
+     */
+    private fun handleMessageSafe(session: WebSocketSession, message: InboundMessage, text: () -> String) {
+        receivedMessages.labels(if (message.op in WebSocketHandler.OPS) message.op else "other").inc()
+        if (log.isDebugEnabled) {
+            log.debug("Received {}", text())
+        } else if (log.isInfoEnabled && shouldSampleLog()) {
+            log.info("Received (sampled) {}", text())
+        }
 
         if (!session.isOpen) {
             log.error("Ignoring closing websocket: " + session.remoteAddress!!)
             return
         }
 
-        val context = contextMap[session.id]
+        val context = sessions.get(session.id)
                 ?: throw IllegalStateException("No context for session ID ${session.id}. Broken websocket?")
-        context.eventEmitter.onWebsocketMessageIn(message.payload)
-        context.wsHandler.handle(json)
+        if (context.eventEmitter.hasListeners) context.eventEmitter.onWebsocketMessageIn(text())
+        context.wsHandler.handle(message)
+    }
+
+    /**
+     * Logging every message at info level is too expensive under high voiceUpdate/update rates,
+     * so at most one message per interval is logged.
+     */
+    private fun shouldSampleLog(): Boolean {
+        val now = System.nanoTime()
+        val last = lastSampledLog.get()
+        return now - last >= MESSAGE_LOG_INTERVAL_NANOS && lastSampledLog.compareAndSet(last, now)
     }
 
-    internal fun onSessionResumeTimeout(context: SocketContext) {
-        resumableSessions.remove(context.resumeKey)
+    private fun onSessionResumeTimeout(context: SocketContext) {
+        log.info("Session with key {} was not resumed in time", context.resumeKey)
         context.shutdown()
     }
 
-    internal fun canResume(key: String) = resumableSessions[key]?.stopResumeTimeout() ?: false
+    /**
+     * @return snapshots of all sessions that can be resumed, connected or not
+     */
+    internal fun snapshotSessions(): JSONArray {
+        val snapshots = JSONArray()
+        sessions.allContexts.forEach { context ->
+            if (context.resumeKey == null) return@forEach
+            try {
+                snapshots.put(context.snapshot())
+            } catch (e: Exception) {
+                log.error("Failed to snapshot session with key {}", context.resumeKey, e)
+            }
+        }
+        return snapshots
+    }
+
+    /**
+     * Recreates a session from a snapshot as a paused session, which a client can resume with its resume key
+     */
+    internal fun restoreSession(snapshot: JSONObject) {
+        val userId = snapshot.getString("userId")
+        val context = SocketContext(
+                audioPlayerManager,
+                serverConfig,
+                null,
+                this,
+                userId,
+                koe.newClient(userId.toLong()),
+                playerUpdateScheduler,
+                commandExecutor,
+                eventHandlers,
+                webSocketExtensions,
+                filterExtensions
+        )
+        context.resumeKey = snapshot.getString("resumeKey")
+        context.resumeTimeout = snapshot.getLong("resumeTimeout")
+        context.pause()
+        context.restore(snapshot)
+        sessions.addPaused(context)?.shutdown()
+        log.info("Restored session with key {} and {} players", context.resumeKey, context.getPlayers().size)
+    }
+
+    internal fun canResume(key: String) = sessions.extend(key)
 }
\ No newline at end of file
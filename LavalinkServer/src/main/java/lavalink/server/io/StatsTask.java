@@ -24,7 +24,6 @@ package lavalink.server.io;
 
 import lavalink.server.Launcher;
 import lavalink.server.player.AudioLossCounter;
-import lavalink.server.player.Player;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,11 +32,14 @@ import oshi.hardware.HardwareAbstractionLayer;
 import oshi.software.os.OSProcess;
 import oshi.software.os.OperatingSystem;
 
+/**
+ * Samples the node stats once per interval and sends them to every session, along with the frame stats of the
+ * session's own players.
+ */
 public class StatsTask implements Runnable {
 
     private static final Logger log = LoggerFactory.getLogger(StatsTask.class);
 
-    private final SocketContext context;
     private final SocketServer socketServer;
 
     private final SystemInfo si = new SystemInfo();
@@ -45,35 +47,40 @@ public class StatsTask implements Runnable {
     /** CPU ticks used for calculations in CPU load. */
     private long[] prevTicks;
 
-    StatsTask(SocketContext context, SocketServer socketServer) {
-        this.context = context;
+    /** The latest node stats. Never modified after being published, as sessions share it */
+    private volatile JSONObject snapshot = null;
+
+    StatsTask(SocketServer socketServer) {
         this.socketServer = socketServer;
     }
 
     @Override
     public void run() {
         try {
-            sendStats();
+            JSONObject stats = sampleStats();
+            snapshot = stats;
+            socketServer.getContexts().forEach(context -> sendStats(context, stats));
         } catch (Exception e) {
             log.error("Exception while sending stats", e);
         }
     }
 
-    private void sendStats() {
-        if (context.getSessionPaused()) return;
+    /**
+     * Sends the latest stats to a single session, for instance one that just connected
+     */
+    void sendTo(SocketContext context) {
+        JSONObject stats = snapshot;
+        if (stats != null) sendStats(context, stats);
+    }
 
+    private JSONObject sampleStats() {
         JSONObject out = new JSONObject();
 
-        final int[] playersTotal = {0};
-        final int[] playersPlaying = {0};
-
-        socketServer.getContexts().forEach(socketContext -> {
-            playersTotal[0] += socketContext.getPlayers().size();
-            playersPlaying[0] += socketContext.getPlayingPlayers().size();
-        });
-
-        out.put("op", "stats");
-        out.put("players", new JSONObject().put("playing", playersPlaying[0]).put("total", playersTotal[0]));
+        PlayerCounters counters = socketServer.getPlayerCounters();
+        out.put("players", new JSONObject()
+                .put("playing", counters.getPlaying())
+                .put("paused", counters.getPaused())
+                .put("total", counters.getTotal()));
         out.put("uptime", System.currentTimeMillis() - Launcher.INSTANCE.getStartTime());
 
         // In bytes
@@ -100,21 +107,35 @@ public class StatsTask implements Runnable {
         cpu.put("lavalinkLoad", load);
 
         out.put("cpu", cpu);
+        return out;
+    }
+
+    private void sendStats(SocketContext context, JSONObject stats) {
+        if (context.getSessionPaused()) return;
+
+        JSONObject out = new JSONObject()
+            .put("op", "stats")
+            .put("players", stats.get("players"))
+            .put("uptime", stats.get("uptime"))
+            .put("memory", stats.get("memory"))
+            .put("cpu", stats.get("cpu"));
 
-        int[] frameStats = new int[3];
+        int[] frameStats = new int[4];
         
         context.getPlayingPlayers().forEach(player -> {
             AudioLossCounter counter = player.getAudioLossCounter();
             if(counter.isDataUsable()) {
                 frameStats[0]++;
-                frameStats[1] += counter.getLastMinuteSent().sum();
-                frameStats[2] += counter.getLastMinuteNulled().sum();
+                frameStats[1] += counter.getLastMinuteSent();
+                frameStats[2] += counter.getLastMinuteNulled();
+                frameStats[3] += counter.getLastMinuteTranscoded();
             }
         });
         
         int totalPlayers = frameStats[0];
         int totalSent = frameStats[1];
         int totalNulled = frameStats[2];
+        int totalTranscoded = frameStats[3];
         
         int totalDeficit = totalPlayers * AudioLossCounter.EXPECTED_PACKET_COUNT_PER_MIN
                 - (totalSent + totalNulled);
@@ -124,6 +145,8 @@ public class StatsTask implements Runnable {
             out.put("frameStats", new JSONObject()
             .put("sent", totalSent / totalPlayers)
             .put("nulled", totalNulled / totalPlayers)
+            .put("passthrough", (totalSent - totalTranscoded) / totalPlayers)
+            .put("transcoded", totalTranscoded / totalPlayers)
             .put("deficit", totalDeficit / totalPlayers));
         }
 
@@ -0,0 +1,93 @@
+package lavalink.server.io;
+
+import io.prometheus.client.Counter;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.websockets.core.StreamSinkFrameChannel;
+import io.undertow.websockets.core.StreamSourceFrameChannel;
+import io.undertow.websockets.extensions.ExtensionFunction;
+import io.undertow.websockets.extensions.PerMessageDeflateHandshake;
+
+import java.io.IOException;
+
+/**
+ * permessage-deflate (RFC 7692) which sends messages smaller than a threshold uncompressed, as deflating tiny
+ * messages costs more CPU than it saves bandwidth. The RFC allows mixing compressed and uncompressed messages.
+ */
+public class ThresholdDeflateHandshake extends PerMessageDeflateHandshake {
+
+    private static final Counter deflateBytes = Counter.build()
+            .name("lavalink_websocket_deflate_bytes_total")
+            .help("Outgoing websocket payload bytes: skipped (sent raw), input and output of compression")
+            .labelNames("stage")
+            .register();
+
+    private final int threshold;
+
+    /**
+     * @param compressionLevel the deflater level, 1-9
+     * @param threshold        messages smaller than this many bytes are sent uncompressed
+     */
+    public ThresholdDeflateHandshake(int compressionLevel, int threshold) {
+        super(false, compressionLevel);
+        this.threshold = threshold;
+    }
+
+    @Override
+    public ExtensionFunction create() {
+        return new ThresholdDeflateFunction(super.create(), threshold);
+    }
+
+    private static class ThresholdDeflateFunction implements ExtensionFunction {
+        private final ExtensionFunction deflate;
+        private final int threshold;
+        /** The channel of a message that is compressed over multiple writes */
+        private StreamSinkFrameChannel compressing = null;
+
+        private ThresholdDeflateFunction(ExtensionFunction deflate, int threshold) {
+            this.deflate = deflate;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public boolean hasExtensionOpCode() {
+            return deflate.hasExtensionOpCode();
+        }
+
+        @Override
+        public int writeRsv(int rsv) {
+            return deflate.writeRsv(rsv);
+        }
+
+        @Override
+        public synchronized PooledByteBuffer transformForWrite(PooledByteBuffer pooledBuffer,
+                                                               StreamSinkFrameChannel channel,
+                                                               boolean lastFrame) throws IOException {
+            int size = pooledBuffer.getBuffer().remaining();
+
+            // Only whole messages are known to be small, partially written ones are compressed regardless
+            if (lastFrame && compressing != channel && size < threshold) {
+                channel.setRsv(channel.getRsv() & ~RSV1);
+                deflateBytes.labels("skipped").inc(size);
+                return pooledBuffer;
+            }
+
+            compressing = lastFrame ? null : channel;
+            PooledByteBuffer result = deflate.transformForWrite(pooledBuffer, channel, lastFrame);
+            deflateBytes.labels("input").inc(size);
+            deflateBytes.labels("output").inc(result.getBuffer().remaining());
+            return result;
+        }
+
+        @Override
+        public PooledByteBuffer transformForRead(PooledByteBuffer pooledBuffer,
+                                                 StreamSourceFrameChannel channel,
+                                                 boolean lastFragmentOfFrame) throws IOException {
+            return deflate.transformForRead(pooledBuffer, channel, lastFragmentOfFrame);
+        }
+
+        @Override
+        public void dispose() {
+            deflate.dispose();
+        }
+    }
+}
@@ -12,7 +12,6 @@ import moe.kyokobot.koe.VoiceServerInfo
 import org.json.JSONObject
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
-import kotlin.reflect.KFunction1
 
 class WebSocketHandler(
     private val context: SocketContext,
@@ -22,33 +21,46 @@ class WebSocketHandler(
 
     companion object {
         private val log: Logger = LoggerFactory.getLogger(WebSocketHandler::class.java)
+
+        /** Built-in ops, excluding those added by plugins */
+        val OPS = setOf(
+            "voiceUpdate", "update", "play", "stop", "pause", "seek", "volume", "filters", "destroy", "services",
+            "configureResuming", "ping", "loadTracks", "batch", "ack", "subscribe"
+        )
     }
 
-    private val handlers: Map<String, (JSONObject) -> Unit> = mutableMapOf(
-        "voiceUpdate" to ::voiceUpdate,
-        "update" to ::update,
-        "play" to ::play,
+    private val handlers: Map<String, (InboundMessage) -> Unit> = mutableMapOf<String, (InboundMessage) -> Unit>(
+        "voiceUpdate" to { voiceUpdate(it.json) },
+        "update" to { update(it.json) },
+        "play" to { play(it.json) },
         "stop" to ::stop,
-        "pause" to ::pause,
-        "seek" to ::seek,
-        "volume" to ::volume,
-        "filters" to ::filters,
+        "pause" to { pause(it.json) },
+        "seek" to { seek(it.json) },
+        "volume" to { volume(it.json) },
+        "filters" to { filters(it.json) },
         "destroy" to ::destroy,
-        "services" to ::services,
-        "configureResuming" to ::configureResuming,
+        "services" to { services(it.json) },
+        "configureResuming" to { configureResuming(it.json) },
         "ping" to ::ping,
-        "loadTracks" to ::loadTracks
+        "loadTracks" to { loadTracks(it.json) },
+        "batch" to { batch(it.json) },
+        "ack" to { context.acknowledge(it.json.getLong("seq")) },
+        "subscribe" to { subscribe(it.json) }
     ).apply {
-        wsExtensions.forEach {
-            val func = fun(json: JSONObject) { it.onInvocation(context, json) }
-            this[it.opName] = func as KFunction1<JSONObject, Unit>
+        wsExtensions.forEach { extension ->
+            this[extension.opName] = { extension.onInvocation(context, it.json) }
         }
     }
 
-    fun handle(json: JSONObject) {
-        val op = json.getString("op")
+    /**
+     * Ops which only need the op and guild id are handled without parsing the rest of the message.
+     * Ops for a guild are queued in that guild's mailbox, others run on the calling thread.
+     */
+    fun handle(message: InboundMessage) {
+        val op = message.op ?: return log.warn("Message without op")
         val handler = handlers[op] ?: return log.warn("Unknown op '$op'")
-        handler(json)
+        val guildId = message.guildId?.toLongOrNull() ?: return handler(message)
+        context.mailboxes.submit(guildId) { handler(message) }
     }
 
     private fun voiceUpdate(json: JSONObject) {
@@ -71,8 +83,8 @@ class WebSocketHandler(
         FilterChain.setFiltersFromJSON(json, player.getFilterChain())
     }
 
-    private fun stop(json: JSONObject) {
-        val player = context.getPlayer(json.getString("guildId"))
+    private fun stop(message: InboundMessage) {
+        val player = context.getPlayer(message.guildId ?: message.json.getString("guildId"))
         player.stop()
     }
 
@@ -93,8 +105,8 @@ class WebSocketHandler(
         player.setVolume(json.getInt("volume"))
     }
 
-    private fun destroy(json: JSONObject) {
-        context.destroyPlayer(json.getLong("guildId"))
+    private fun destroy(message: InboundMessage) {
+        context.destroyPlayer(message.guildId?.toLong() ?: message.json.getLong("guildId"))
     }
 
     private fun services(json: JSONObject) {
@@ -107,7 +119,16 @@ class WebSocketHandler(
         if (json.has("timeout")) context.resumeTimeout = json.getLong("timeout")
     }
 
-    private fun ping(json: JSONObject) {
+    private fun subscribe(json: JSONObject) {
+        var mask = 0L
+        json.getJSONArray("events").forEach { name ->
+            val type = EventType.fromName(name.toString()) ?: return@forEach log.warn("Unknown event type '$name'")
+            mask = mask or type.bit
+        }
+        context.eventMask = mask
+    }
+
+    private fun ping(message: InboundMessage) {
         context.send(JSONObject().put("op", "pong"))
     }
 
@@ -120,4 +141,13 @@ class WebSocketHandler(
             context.send(json.put("data", it))
         };
     }
+
+    private fun batch(json: JSONObject) {
+        context.playerHandler.batch(json.getJSONArray("commands"))
+            .thenAccept { results ->
+                val out = JSONObject().put("op", "batch").put("results", results)
+                if (json.has("nonce")) out.put("nonce", json.get("nonce"))
+                context.send(out)
+            }
+    }
 }
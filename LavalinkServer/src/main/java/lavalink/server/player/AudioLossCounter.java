@@ -26,40 +26,66 @@ import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
-import lavalink.server.util.ByteRingBuffer;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Tracks when the frame counts of a player become meaningful. The counts themselves are kept in
+ * {@link FrameAccounting}, in the slot this counter holds until {@link #release()}.
+ */
 public class AudioLossCounter extends AudioEventAdapter {
     public static final int EXPECTED_PACKET_COUNT_PER_MIN = (60 * 1000) / 20;
     
     private static final long ACCEPTABLE_TRACK_SWITCH_TIME = TimeUnit.MILLISECONDS.toNanos(100);
-    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
     
-    private final ByteRingBuffer nulled = new ByteRingBuffer(60);
-    private final ByteRingBuffer sent = new ByteRingBuffer(60);
+    private final FrameAccounting accounting;
+    private final int slot;
+    // The audio sender may still be running when the player is destroyed
+    private volatile boolean released = false;
     private long playingSince = Long.MAX_VALUE;
     private long trackStart;
     private long lastTrackEnd;
-    private long lastUpdate;
-    private byte currentNulled;
-    private byte currentSent;
+
+    public AudioLossCounter(FrameAccounting accounting) {
+        this.accounting = accounting;
+        this.slot = accounting.allocate();
+    }
     
-    public void onSuccess() {
-        checkTime();
-        currentSent++;
+    /**
+     * @param transcoded whether the frame was decoded and encoded again rather than passed through
+     */
+    public void onSuccess(boolean transcoded) {
+        if (released) return;
+        accounting.increment(slot, FrameAccounting.SENT);
+        if (transcoded) accounting.increment(slot, FrameAccounting.TRANSCODED);
     }
     
     public void onLoss() {
-        checkTime();
-        currentNulled++;
+        if (released) return;
+        accounting.increment(slot, FrameAccounting.NULLED);
     }
     
-    public ByteRingBuffer getLastMinuteNulled() {
-        return nulled;
+    public int getLastMinuteNulled() {
+        return accounting.lastMinute(slot, FrameAccounting.NULLED);
     }
     
-    public ByteRingBuffer getLastMinuteSent() {
-        return sent;
+    public int getLastMinuteSent() {
+        return accounting.lastMinute(slot, FrameAccounting.SENT);
+    }
+
+    /**
+     * A subset of {@link #getLastMinuteSent()}
+     */
+    public int getLastMinuteTranscoded() {
+        return accounting.lastMinute(slot, FrameAccounting.TRANSCODED);
+    }
+
+    /**
+     * Gives the slot back. Frames counted afterwards are ignored.
+     */
+    public void release() {
+        if (released) return;
+        released = true;
+        accounting.release(slot);
     }
     
     public boolean isDataUsable() {
@@ -69,26 +95,13 @@ public class AudioLossCounter extends AudioEventAdapter {
         return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - playingSince) >= 60;
     }
     
-    private void checkTime() {
-        long now = System.nanoTime();
-        if(now - lastUpdate > ONE_SECOND) {
-            lastUpdate = now;
-            nulled.put(currentNulled);
-            sent.put(currentSent);
-            currentNulled = 0;
-            currentSent = 0;
-        }
-    }
-    
     private void start() {
         trackStart = System.nanoTime();
         if(trackStart - playingSince > ACCEPTABLE_TRACK_SWITCH_TIME || playingSince == Long.MAX_VALUE) {
             playingSince = trackStart;
-            nulled.clear();
-            sent.clear();
+            accounting.clear(slot);
         }
     }
-
     private void end() {
         lastTrackEnd = System.nanoTime();
     }
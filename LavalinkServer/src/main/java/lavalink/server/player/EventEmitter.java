@@ -28,6 +28,7 @@ import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import lavalink.server.io.EventType;
 import lavalink.server.io.SocketServer;
 import lavalink.server.player.services.sponsorblock.SponsorblockHandler;
 import lavalink.server.util.Util;
@@ -50,42 +51,67 @@ public class EventEmitter extends AudioEventAdapter {
 
     @Override
     public void onPlayerResume(AudioPlayer player) {
+        if (!linkPlayer.getSocket().wants(EventType.PLAYER_RESUME)) return;
         linkPlayer.getSocket().send(baseEventPayload("PlayerResumeEvent"));
     }
 
     @Override
     public void onPlayerPause(AudioPlayer player) {
+        if (!linkPlayer.getSocket().wants(EventType.PLAYER_PAUSE)) return;
         linkPlayer.getSocket().send(baseEventPayload("PlayerPauseEvent"));
     }
 
     @Override
     public void onTrackStart(AudioPlayer player, AudioTrack track) {
-        JSONObject out = baseEventPayload("TrackStartEvent");
-        addTrackField(track, out);
+        if (linkPlayer.getSocket().wants(EventType.TRACK_START)) {
+            JSONObject out = baseEventPayload("TrackStartEvent");
+            addTrackField(track, out);
 
-        linkPlayer.getSocket().send(out);
+            linkPlayer.getSocket().send(out);
+        }
         linkPlayer.getServicesHandler().handleTrackStart(track);
     }
 
     @Override
-    public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason reason) {
-        JSONObject out = baseEventPayload("TrackEndEvent");
+    public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+        AudioTrackEndReason reason = linkPlayer.toReportedEndReason(endReason);
+        boolean endMarkerHit = linkPlayer.getEndMarkerHit();
+        linkPlayer.setEndMarkerHit(false);
 
-        addTrackField(track, out);
-        if (linkPlayer.getEndMarkerHit()) {
-            out.put("reason", AudioTrackEndReason.FINISHED.toString());
-            linkPlayer.setEndMarkerHit(false);
-        } else {
-            out.put("reason", reason.toString());
+        if (linkPlayer.getSocket().wants(EventType.TRACK_END)) {
+            JSONObject out = baseEventPayload("TrackEndEvent");
+
+            addTrackField(track, out);
+            out.put("reason", (endMarkerHit ? AudioTrackEndReason.FINISHED : reason).toString());
+
+            linkPlayer.getSocket().send(out);
         }
+        linkPlayer.getServicesHandler().handleTrackEnd(track, reason);
+    }
+
+    /**
+     * Broadcasts are not played by this player's own audio player, so their start and end are reported from here
+     */
+    void onBroadcastStart(AudioTrack track) {
+        if (!linkPlayer.getSocket().wants(EventType.TRACK_START)) return;
+        JSONObject out = baseEventPayload("TrackStartEvent");
+        addTrackField(track, out);
+        linkPlayer.getSocket().send(out);
+    }
 
+    void onBroadcastEnd(AudioTrack track, AudioTrackEndReason reason) {
+        if (!linkPlayer.getSocket().wants(EventType.TRACK_END)) return;
+        JSONObject out = baseEventPayload("TrackEndEvent");
+        addTrackField(track, out);
+        out.put("reason", reason.toString());
         linkPlayer.getSocket().send(out);
-        linkPlayer.getServicesHandler().handleTrackEnd(track, reason);
     }
 
     // These exceptions are already logged by Lavaplayer
     @Override
     public void onTrackException(AudioPlayer player, AudioTrack track, FriendlyException exception) {
+        if (!linkPlayer.getSocket().wants(EventType.TRACK_EXCEPTION)) return;
+
         JSONObject out = baseEventPayload("TrackExceptionEvent");
 
         addTrackField(track, out);
@@ -102,12 +128,14 @@ public class EventEmitter extends AudioEventAdapter {
     public void onTrackStuck(AudioPlayer player, AudioTrack track, long thresholdMs) {
         log.warn(track.getInfo().title + " got stuck! Threshold surpassed: " + thresholdMs);
 
-        JSONObject out = baseEventPayload("TrackStuckEvent");
+        if (linkPlayer.getSocket().wants(EventType.TRACK_STUCK)) {
+            JSONObject out = baseEventPayload("TrackStuckEvent");
 
-        addTrackField(track, out);
-        out.put("thresholdMs", thresholdMs);
+            addTrackField(track, out);
+            out.put("thresholdMs", thresholdMs);
 
-        linkPlayer.getSocket().send(out);
+            linkPlayer.getSocket().send(out);
+        }
         SocketServer.Companion.sendPlayerUpdate(linkPlayer.getSocket(), linkPlayer);
     }
 
@@ -0,0 +1,165 @@
+package lavalink.server.player;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts the frames sent, nulled and transcoded by every player of the node in one table, indexed by a slot each
+ * player holds. Audio senders only increment the counters of the current second. A single timer moves those into a
+ * per-second history once a second and keeps the sums of the last minute up to date, so no clock is read per frame
+ * and reading the last minute costs the same as reading a field.
+ */
+@Service
+public class FrameAccounting {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameAccounting.class);
+
+    public static final int SENT = 0;
+    public static final int NULLED = 1;
+    public static final int TRANSCODED = 2;
+    private static final int COLUMNS = 3;
+    private static final int SECONDS = 60;
+
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * Slots are allocated in pages which never move, so a growing table does not lose concurrent increments
+     */
+    private static class Page {
+        /** The current second. Incremented by audio senders, drained by the timer */
+        final AtomicIntegerArray current = new AtomicIntegerArray(PAGE_SIZE * COLUMNS);
+        /** Sums of the last minute. Written by the timer, read by anyone */
+        final AtomicIntegerArray minute = new AtomicIntegerArray(PAGE_SIZE * COLUMNS);
+        /** The last minute, second by second. Only accessed by the timer */
+        final int[] history = new int[PAGE_SIZE * COLUMNS * SECONDS];
+    }
+
+    private volatile Page[] pages = new Page[0];
+    private volatile int slotCount = 0;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final Queue<Integer> clears = new ConcurrentLinkedQueue<>();
+    private final Queue<Integer> releases = new ConcurrentLinkedQueue<>();
+    /** Released slots are held back for a tick, in case a sender was still counting into them. Timer only */
+    private List<Integer> retiring = new ArrayList<>();
+    private int second = 0; // Only accessed by the timer
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "frame-accounting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FrameAccounting() {
+        timer.scheduleAtFixedRate(this::rotate, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public synchronized int allocate() {
+        Integer free = freeSlots.poll();
+        if (free != null) return free;
+
+        int slot = slotCount;
+        if ((slot >> PAGE_BITS) >= pages.length) {
+            Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = new Page();
+            pages = grown;
+        }
+        slotCount = slot + 1;
+        return slot;
+    }
+
+    /**
+     * The slot is cleared, and reused once the timer has run twice
+     */
+    public void release(int slot) {
+        releases.add(slot);
+    }
+
+    /**
+     * Zeroes the history of the slot the next time the timer runs
+     */
+    public void clear(int slot) {
+        clears.add(slot);
+    }
+
+    public void increment(int slot, int column) {
+        pages[slot >> PAGE_BITS].current.incrementAndGet((slot & PAGE_MASK) * COLUMNS + column);
+    }
+
+    public int lastMinute(int slot, int column) {
+        return pages[slot >> PAGE_BITS].minute.get((slot & PAGE_MASK) * COLUMNS + column);
+    }
+
+    private void rotate() {
+        try {
+            rotateSlots();
+        } catch (Exception e) {
+            log.error("Exception while rotating frame counts", e);
+        }
+    }
+
+    private void rotateSlots() {
+        int index = second;
+        second = (second + 1) % SECONDS;
+
+        // Read the count first: allocate() publishes the pages before the count, so these pages hold every slot
+        int count = slotCount;
+        Page[] table = pages;
+        for (int p = 0; p * PAGE_SIZE < count; p++) {
+            Page page = table[p];
+            int entries = Math.min(PAGE_SIZE, count - p * PAGE_SIZE) * COLUMNS;
+            for (int k = 0; k < entries; k++) {
+                int value = page.current.getAndSet(k, 0);
+                int h = k * SECONDS + index;
+                page.minute.lazySet(k, page.minute.get(k) - page.history[h] + value);
+                page.history[h] = value;
+            }
+        }
+
+        Integer slot;
+        while ((slot = clears.poll()) != null) {
+            reset(table, slot);
+        }
+        List<Integer> retired = retiring;
+        retiring = new ArrayList<>();
+        while ((slot = releases.poll()) != null) {
+            reset(table, slot);
+            retiring.add(slot);
+        }
+        for (int retiredSlot : retired) {
+            reset(table, retiredSlot);
+        }
+        synchronized (this) {
+            retired.forEach(freeSlots::push);
+        }
+    }
+
+    private void reset(Page[] table, int slot) {
+        Page page = table[slot >> PAGE_BITS];
+        int base = (slot & PAGE_MASK) * COLUMNS;
+        for (int k = base; k < base + COLUMNS; k++) {
+            page.current.set(k, 0);
+            page.minute.set(k, 0);
+            Arrays.fill(page.history, k * SECONDS, (k + 1) * SECONDS, 0);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+}
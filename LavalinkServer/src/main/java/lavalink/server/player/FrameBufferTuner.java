@@ -0,0 +1,121 @@
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import io.prometheus.client.Counter;
+import lavalink.server.config.AdaptiveFrameBufferConfig;
+
+/**
+ * Sizes the frame buffer of one player after how its sources behave. The buffer doubles when it runs dry or nearly
+ * empty in the middle of a track, which is how jitter of the source shows, and shrinks by a quarter once it has not
+ * run low for a while, so stable sources are not given the buffer a flaky stream needs. A new size applies from the
+ * next track, as lavaplayer sizes the buffer when a track starts, so the buffer grows at most once per track. Updated
+ * by the audio sending thread only, except for {@link #onRefill(boolean)}.
+ */
+class FrameBufferTuner {
+
+    private static final int FRAME_DURATION_MS = 20;
+    private static final int MIN_DURATION_MS = 200; // Enforced by lavaplayer
+    /** Below this ratio the buffer is considered to be running low */
+    private static final double LOW_FILL = 0.1;
+
+    private static final Counter adjustments = Counter.build()
+            .name("lavalink_frame_buffer_adjustments_total")
+            .help("Changes of the frame buffer duration of players, by direction")
+            .labelNames("direction")
+            .register();
+
+    private final AudioPlayer player;
+    private final int minDuration;
+    private final int maxDuration;
+    private final long stableFrames;
+    private volatile int duration;
+
+    private volatile boolean refilling = false;
+    private volatile boolean trackStarted = false;
+    private long framesInTrack = 0;
+    private long framesSinceLow = 0;
+    /** Whether the buffer was grown since the track started, as a new size does not apply before the next one */
+    private boolean grownInTrack = false;
+
+    FrameBufferTuner(AudioPlayer player, AdaptiveFrameBufferConfig config, int initialDuration) {
+        this.player = player;
+        this.minDuration = Math.max(MIN_DURATION_MS, config.getMinMs());
+        this.maxDuration = Math.max(minDuration, config.getMaxMs());
+        this.stableFrames = config.getStableSeconds() * 1000L / FRAME_DURATION_MS;
+        this.duration = clamp(initialDuration);
+        FrameBuffers.setDuration(player, duration);
+    }
+
+    int getDuration() {
+        return duration;
+    }
+
+    /**
+     * Called when the frame buffer starts empty
+     *
+     * @param trackStart whether a track started, rather than the playing one having been seeked
+     */
+    void onRefill(boolean trackStart) {
+        if (trackStart) trackStarted = true;
+        refilling = true;
+    }
+
+    void onFrame() {
+        checkRefill();
+        framesInTrack++;
+        if (++framesSinceLow >= stableFrames) {
+            framesSinceLow = 0;
+            resize(duration * 3 / 4);
+        }
+    }
+
+    /**
+     * @param playing whether a frame was expected, as missing frames are normal while paused or idle
+     */
+    void onNull(boolean playing) {
+        checkRefill();
+        // Frames are missing until the first one after a track start or seek, which is not the buffer's fault
+        if (!playing || framesInTrack == 0) return;
+        onLow();
+    }
+
+    /**
+     * @param fill the ratio of the frame buffer in use, or a negative number if the player has no frame buffer
+     */
+    void onSample(double fill) {
+        checkRefill();
+        // The buffer is still filling up until a buffer's worth of frames has been played
+        if (fill >= 0 && fill < LOW_FILL && framesInTrack * FRAME_DURATION_MS > duration) {
+            onLow();
+        }
+    }
+
+    private void onLow() {
+        framesSinceLow = 0;
+        if (grownInTrack) return;
+        grownInTrack = true;
+        resize(duration * 2);
+    }
+
+    private void checkRefill() {
+        if (!refilling) return;
+        refilling = false;
+        framesInTrack = 0;
+        if (trackStarted) {
+            trackStarted = false;
+            grownInTrack = false;
+        }
+    }
+
+    private void resize(int target) {
+        int resized = clamp(target);
+        if (resized == duration) return;
+        adjustments.labels(resized > duration ? "grow" : "shrink").inc();
+        duration = resized;
+        FrameBuffers.setDuration(player, resized);
+    }
+
+    private int clamp(int target) {
+        return Math.max(minDuration, Math.min(maxDuration, target));
+    }
+}
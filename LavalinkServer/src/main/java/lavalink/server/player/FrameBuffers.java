@@ -0,0 +1,112 @@
+package lavalink.server.player;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * The frame buffer API of lavaplayer beyond the manager-wide duration: the buffer of a playing track, and the buffer
+ * duration of a single player. Forks of lavaplayer differ in what they expose here, so these are looked up once when
+ * the class loads instead of being linked against, and what is missing is reported as unavailable.
+ */
+final class FrameBuffers {
+
+    private static final Logger log = LoggerFactory.getLogger(FrameBuffers.class);
+
+    private static final String TRACK = "com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack";
+    private static final String EXECUTOR = "com.sedmelluq.discord.lavaplayer.track.playback.AudioTrackExecutor";
+    private static final String BUFFER = "com.sedmelluq.discord.lavaplayer.track.playback.AudioFrameBuffer";
+
+    @Nullable
+    private static final Class<?> internalTrack = findClass(TRACK);
+    @Nullable
+    private static final MethodHandle setDuration =
+            find(AudioPlayer.class.getName(), "setFrameBufferDuration", Integer.class);
+    @Nullable
+    private static final MethodHandle activeExecutor = find(TRACK, "getActiveExecutor");
+    @Nullable
+    private static final MethodHandle audioBuffer = find(EXECUTOR, "getAudioBuffer");
+    @Nullable
+    private static final MethodHandle fullCapacity = find(BUFFER, "getFullCapacity");
+    @Nullable
+    private static final MethodHandle remainingCapacity = find(BUFFER, "getRemainingCapacity");
+
+    private FrameBuffers() {
+    }
+
+    /**
+     * @return whether the frame buffer duration can be set per player
+     */
+    static boolean canResize() {
+        return setDuration != null;
+    }
+
+    /**
+     * Sets the frame buffer duration of the player, which applies from its next track. Does nothing if
+     * {@link #canResize()} is false.
+     */
+    static void setDuration(AudioPlayer player, int duration) {
+        if (setDuration == null) return;
+        try {
+            setDuration.invoke(player, Integer.valueOf(duration));
+        } catch (Throwable e) {
+            log.error("Failed to set the frame buffer duration", e);
+        }
+    }
+
+    /**
+     * @return the ratio of the frame buffer of the track in use, or -1 if it has none or it cannot be read
+     */
+    static double fill(@Nullable AudioTrack track) {
+        if (internalTrack == null || activeExecutor == null || audioBuffer == null || fullCapacity == null
+                || remainingCapacity == null || !internalTrack.isInstance(track)) {
+            return -1;
+        }
+
+        try {
+            Object executor = activeExecutor.invoke(track);
+            Object buffer = executor != null ? audioBuffer.invoke(executor) : null;
+            if (buffer == null) return -1;
+            int full = (int) fullCapacity.invoke(buffer);
+            if (full <= 0) return -1;
+            return 1 - (double) (int) remainingCapacity.invoke(buffer) / full;
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    @Nullable
+    private static Class<?> findClass(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            log.warn("{} is not available in this lavaplayer build", className);
+            return null;
+        }
+    }
+
+    /**
+     * @return a handle taking the receiver and the parameters as objects and returning an object, or null if the
+     * method does not exist
+     */
+    @Nullable
+    private static MethodHandle find(String className, String name, Class<?>... parameterTypes) {
+        Class<?> type = findClass(className);
+        if (type == null) return null;
+        try {
+            Method method = type.getMethod(name, parameterTypes);
+            return MethodHandles.publicLookup().unreflect(method)
+                    .asType(MethodType.genericMethodType(parameterTypes.length + 1));
+        } catch (ReflectiveOperationException e) {
+            log.warn("{}.{} is not available in this lavaplayer build", className, name);
+            return null;
+        }
+    }
+}
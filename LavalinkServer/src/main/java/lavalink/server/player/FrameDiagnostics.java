@@ -0,0 +1,127 @@
+package lavalink.server.player;
+
+import io.prometheus.client.Histogram;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helps attribute stutter of a player. A slow provide() points at the sender, a low frame buffer at decoding or the
+ * source connection, and the length of runs of missing frames tells short hiccups from outages.
+ * Timings and buffer levels are sampled on one poll in 16, runs of missing frames are counted on every poll.
+ * Updated by the audio sending thread only, except for {@link #onRefill()}; the per-player figures cover the previous
+ * minute.
+ */
+public class FrameDiagnostics {
+
+    private static final int SAMPLE_MASK = 15;
+    private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Histogram provideLatency = Histogram.build()
+            .name("lavalink_frame_provide_seconds")
+            .help("Time taken to provide a frame to the audio sender, sampled")
+            .buckets(0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.02)
+            .register();
+
+    private static final Histogram bufferFill = Histogram.build()
+            .name("lavalink_frame_buffer_fill_ratio")
+            .help("How full the frame buffer of a playing track is when the audio sender polls it, sampled")
+            .buckets(0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 1)
+            .register();
+
+    private static final Histogram nullRuns = Histogram.build()
+            .name("lavalink_frame_null_run_frames")
+            .help("Lengths of runs of consecutive missing frames while playing")
+            .buckets(1, 2, 3, 5, 10, 25, 50, 100, 250, 500)
+            .register();
+
+    private int polls = 0;
+    private int nullRun = 0;
+    // Set when the frame buffer starts empty, until the first frame after that
+    private volatile boolean refilling = false;
+
+    // The current window
+    private long windowStart = System.nanoTime();
+    private long maxProvideNanos = 0;
+    private double fillSum = 0;
+    private int fillSamples = 0;
+    private int longestNullRun = 0;
+
+    // The previous window, as read by state updates
+    private volatile long lastMaxProvideNanos = 0;
+    private volatile double lastAverageFill = -1;
+    private volatile int lastLongestNullRun = 0;
+
+    /**
+     * @return whether this poll should be timed and its buffer level recorded
+     */
+    boolean shouldSample() {
+        return (++polls & SAMPLE_MASK) == 0;
+    }
+
+    /**
+     * @param fill the ratio of the frame buffer in use, or a negative number if the player has no frame buffer
+     */
+    void onSample(long provideNanos, double fill) {
+        provideLatency.observe(provideNanos / 1_000_000_000.0);
+        if (provideNanos > maxProvideNanos) maxProvideNanos = provideNanos;
+        if (fill >= 0) {
+            bufferFill.observe(fill);
+            fillSum += fill;
+            fillSamples++;
+        }
+
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW) {
+            lastMaxProvideNanos = maxProvideNanos;
+            lastAverageFill = fillSamples == 0 ? -1 : fillSum / fillSamples;
+            lastLongestNullRun = longestNullRun;
+            windowStart = now;
+            maxProvideNanos = 0;
+            fillSum = 0;
+            fillSamples = 0;
+            longestNullRun = 0;
+        }
+    }
+
+    /**
+     * Called when the frame buffer starts empty, when a track starts or after a seek. Frames missing until it has
+     * one again are not counted as a run.
+     */
+    void onRefill() {
+        refilling = true;
+    }
+
+    void onFrame() {
+        if (refilling) {
+            refilling = false;
+            nullRun = 0;
+            return;
+        }
+        if (nullRun == 0) return;
+        nullRuns.observe(nullRun);
+        if (nullRun > longestNullRun) longestNullRun = nullRun;
+        nullRun = 0;
+    }
+
+    /**
+     * @param playing whether a frame was expected, as missing frames are normal while paused or idle
+     */
+    void onNull(boolean playing) {
+        if (refilling) return;
+        if (playing) {
+            nullRun++;
+        } else {
+            onFrame();
+        }
+    }
+
+    JSONObject encode() {
+        JSONObject json = new JSONObject()
+                .put("provideMaxMs", lastMaxProvideNanos / 1_000_000.0)
+                .put("longestNullRun", lastLongestNullRun);
+        double fill = lastAverageFill;
+        if (fill >= 0) json.put("bufferFill", fill);
+        return json;
+    }
+}
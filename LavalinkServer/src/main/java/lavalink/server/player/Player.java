@@ -22,20 +22,32 @@
 
 package lavalink.server.player;
 
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
-import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
 import io.netty.buffer.ByteBuf;
+import io.prometheus.client.Counter;
 import dev.arbjerg.lavalink.api.ISocketContext;
+import lavalink.server.io.PlayerCounters;
 import lavalink.server.io.SocketContext;
 import lavalink.server.io.SocketServer;
+import lavalink.server.player.broadcast.Broadcast;
+import lavalink.server.player.broadcast.BroadcastManager;
+import lavalink.server.player.cache.CachedOpusAudioTrack;
+import lavalink.server.player.cache.FrameRecorder;
+import lavalink.server.player.cache.OpusFrameCache;
 import lavalink.server.player.filters.FilterChain;
 import lavalink.server.player.services.PlayerServicesHandler;
+import lavalink.server.config.AdaptiveFrameBufferConfig;
 import lavalink.server.config.ServerConfig;
+import lavalink.server.util.Util;
 import moe.kyokobot.koe.MediaConnection;
+import moe.kyokobot.koe.VoiceServerInfo;
 import moe.kyokobot.koe.gateway.MediaGatewayConnection;
 import moe.kyokobot.koe.media.OpusAudioFrameProvider;
 import org.json.JSONObject;
@@ -45,26 +57,78 @@ import dev.arbjerg.lavalink.api.IPlayer;
 
 import javax.annotation.Nullable;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
 public class Player extends AudioEventAdapter implements IPlayer {
 
     private static final Logger log = LoggerFactory.getLogger(Player.class);
 
+    private static final Counter sentFrames = Counter.build()
+            .name("lavalink_audio_frames_sent_total")
+            .help("Opus frames sent, by whether they passed through or what forced them to be transcoded: " +
+                    "filters, volume, or a source which is not opus")
+            .labelNames("path")
+            .register();
+    // Resolved once, as frames are counted on the audio sending thread
+    private static final Counter.Child passthroughFrames = sentFrames.labels("passthrough");
+    private static final Counter.Child filtersFrames = sentFrames.labels("filters");
+    private static final Counter.Child volumeFrames = sentFrames.labels("volume");
+    private static final Counter.Child sourceFrames = sentFrames.labels("source");
+
     private final SocketContext socketContext;
     private final long guildId;
     private final ServerConfig serverConfig;
     private final AudioPlayerManager playerManager;
     private final AudioPlayer player;
-    private final AudioLossCounter audioLossCounter = new AudioLossCounter();
+    private final AudioLossCounter audioLossCounter;
+    private final FrameDiagnostics diagnostics = new FrameDiagnostics();
+    /** Sizes the frame buffer of this player, if enabled */
+    @Nullable
+    private final FrameBufferTuner bufferTuner;
     private final FilterChain filters;
     private final PlayerServicesHandler servicesHandler;
-    private AudioFrame lastFrame = null;
-    private ScheduledFuture<?> myFuture = null;
+    private final OpusFrameCache frameCache;
+    /** Records the frames of the current track for the frame cache, if it is eligible */
+    @Nullable
+    private volatile FrameRecorder recorder = null;
+    private final BroadcastManager broadcasts;
+    private final EventEmitter eventEmitter;
+    // The broadcast this player receives instead of playing a track of its own, and the track as the client sent it
+    private final Object broadcastLock = new Object();
+    @Nullable
+    private volatile Broadcast broadcast = null;
+    @Nullable
+    private volatile AudioTrack broadcastTrack = null;
+    // Set while the own track is stopped to switch to a broadcast, which replaces it rather than stopping the player
+    private volatile boolean replacingWithBroadcast = false;
     private boolean endMarkerHit = false;
+    @Nullable
+    private volatile VoiceServerInfo voiceServerInfo = null;
+
+    // What the client last received through getDeltaState()
+    private int sentFiltersRevision;
+    private int sentServicesRevision;
+    private int sentFramesSent;
+    private int sentFramesNulled;
+    private int sentFramesTranscoded;
+    private boolean sentFramesUsable;
+    private boolean deltaStateSent = false;
+
+    // What this player currently contributes to the counters of its session
+    private final PlayerCounters counters;
+    private final Object countersLock = new Object();
+    private boolean countedPlaying = false;
+    private boolean countedPaused = false;
+    private boolean destroyed = false;
+
+    // Whether the current track or broadcast is decoded from opus, and can pass through
+    private volatile boolean opusSource = false;
+    // Cached by getTranscodeReason(), which runs for every frame: the filters revision last checked, shifted left by
+    // one, with whether filters were enabled in the low bit. Packed so no reader pairs a revision with a stale result
+    private volatile int checkedFilters = -1;
 
     public Player(SocketContext socketContext, long guildId, AudioPlayerManager audioPlayerManager, ServerConfig serverConfig) {
         this.socketContext = socketContext;
@@ -73,22 +137,118 @@ public class Player extends AudioEventAdapter implements IPlayer {
         this.playerManager = audioPlayerManager;
         this.player = audioPlayerManager.createPlayer();
         this.player.addListener(this);
-        this.player.addListener(new EventEmitter(audioPlayerManager, this));
+        this.eventEmitter = new EventEmitter(audioPlayerManager, this);
+        this.player.addListener(eventEmitter);
+        this.audioLossCounter = new AudioLossCounter(socketContext.getFrameAccounting());
         this.player.addListener(audioLossCounter);
+        AdaptiveFrameBufferConfig bufferConfig = serverConfig.getAdaptiveFrameBuffer();
+        this.bufferTuner = bufferConfig != null && bufferConfig.getEnabled() && FrameBuffers.canResize()
+                ? new FrameBufferTuner(player, bufferConfig, audioPlayerManager.getFrameBufferDuration())
+                : null;
         this.filters = new FilterChain(this.player);
         this.servicesHandler = new PlayerServicesHandler(this);
+        this.frameCache = socketContext.getFrameCache();
+        this.broadcasts = socketContext.getBroadcasts();
+        this.counters = socketContext.getPlayerCounters();
+        this.counters.add(1, 0, 0);
+    }
+
+    /**
+     * @return a track playing the cached frames of the given track if it is in the frame cache and nothing requires
+     * transcoding, otherwise the given track
+     */
+    public AudioTrack withFrameCache(AudioTrack track) {
+        if (!frameCache.isEnabled() || getTranscodeReason() != null) return track;
+        AudioTrack cached = frameCache.open(track);
+        return cached != null ? cached : track;
     }
 
     public void play(AudioTrack track) {
+        leaveBroadcast(AudioTrackEndReason.REPLACED);
+        recorder = getTranscodeReason() == null ? frameCache.record(track) : null;
         player.playTrack(track);
         SocketServer.Companion.sendPlayerUpdate(socketContext, this);
     }
 
+    /**
+     * Receives the given track from a broadcast shared with every other player broadcasting it, starting at its live
+     * edge. The volume and filters of this player do not apply, as the broadcast is encoded once for everyone.
+     */
+    public void broadcast(AudioTrack track) {
+        synchronized (broadcastLock) {
+            leaveBroadcast(AudioTrackEndReason.REPLACED);
+            recorder = null;
+            // lavaplayer ends the track synchronously, always reporting it as stopped
+            replacingWithBroadcast = true;
+            try {
+                player.stopTrack();
+            } finally {
+                replacingWithBroadcast = false;
+            }
+            broadcastTrack = track;
+            opusSource = isOpusSource(track);
+            broadcast = broadcasts.join(this, track);
+        }
+        updateCounters();
+        socketContext.getPlayerUpdateScheduler().schedule(this);
+        eventEmitter.onBroadcastStart(track);
+        SocketServer.Companion.sendPlayerUpdate(socketContext, this);
+    }
+
+    /**
+     * @return the reason to report for a track of this player's own audio player ending with the given reason
+     */
+    AudioTrackEndReason toReportedEndReason(AudioTrackEndReason reason) {
+        return replacingWithBroadcast && reason == AudioTrackEndReason.STOPPED ? AudioTrackEndReason.REPLACED : reason;
+    }
+
+    public boolean isBroadcasting() {
+        return broadcast != null;
+    }
+
+    @Nullable
+    public AudioTrack getBroadcastTrack() {
+        return broadcastTrack;
+    }
+
+    /**
+     * Called by the broadcast manager when a broadcast this player receives ended by itself
+     */
+    public void onBroadcastEnded(Broadcast ended, AudioTrackEndReason reason) {
+        if (broadcast == ended) leaveBroadcast(reason);
+    }
+
+    private void leaveBroadcast(AudioTrackEndReason reason) {
+        Broadcast left;
+        AudioTrack track;
+        synchronized (broadcastLock) {
+            left = broadcast;
+            track = broadcastTrack;
+            if (left == null) return;
+            broadcast = null;
+            broadcastTrack = null;
+        }
+        broadcasts.leave(this, left);
+        socketContext.getPlayerUpdateScheduler().cancel(this);
+        updateCounters();
+        eventEmitter.onBroadcastEnd(track, reason);
+    }
+
     public void stop() {
+        leaveBroadcast(AudioTrackEndReason.STOPPED);
         player.stopTrack();
     }
 
     public void destroy() {
+        synchronized (countersLock) {
+            if (!destroyed) {
+                destroyed = true;
+                counters.add(-1, countedPlaying ? -1 : 0, countedPaused ? -1 : 0);
+                audioLossCounter.release();
+            }
+        }
+        leaveBroadcast(AudioTrackEndReason.CLEANUP);
+        socketContext.getPlayerUpdateScheduler().cancel(this);
         player.destroy();
     }
 
@@ -130,6 +290,9 @@ public class Player extends AudioEventAdapter implements IPlayer {
         if (track == null) throw new RuntimeException("Can't seek when not playing anything");
 
         track.setPosition(position);
+        // Seeking flushes the frame buffer, so the frames missing until it refills are not stutter
+        diagnostics.onRefill();
+        if (bufferTuner != null) bufferTuner.onRefill(false);
     }
 
     public void setVolume(int volume) {
@@ -145,6 +308,27 @@ public class Player extends AudioEventAdapter implements IPlayer {
     }
 
     public JSONObject getState() {
+        return encodeState(false, false);
+    }
+
+    /**
+     * Like {@link #getState()}, but the filters, services and frame stats are omitted if they are unchanged since the
+     * previous delta state was made. Intended for the updates of the client owning this player only.
+     */
+    public synchronized JSONObject getDeltaState() {
+        JSONObject json = encodeState(deltaStateSent, true);
+        deltaStateSent = true;
+        return json;
+    }
+
+    /**
+     * Makes the next delta state a full state, for instance because the client may have missed previous updates.
+     */
+    public synchronized void resetDeltaState() {
+        deltaStateSent = false;
+    }
+
+    private JSONObject encodeState(boolean delta, boolean remember) {
         JSONObject json = new JSONObject();
 
         if (player.getPlayingTrack() != null)
@@ -159,26 +343,106 @@ public class Player extends AudioEventAdapter implements IPlayer {
             .put("connected", gatewayConnection.isOpen());
         }
 
-        int sent = this.audioLossCounter.getLastMinuteSent().sum();
-        int nulled = this.audioLossCounter.getLastMinuteNulled().sum();
-
         json
         .put("time", System.currentTimeMillis())
         .put("playing", isPlaying())
         .put("paused", player.isPaused())
-        .put("volume", player.getVolume())
-        .put("services", servicesHandler.encode())
-        .put("filters", filters.encode())
-        .put("frameStats", new JSONObject()
-            .put("sent", sent)
-            .put("nulled", nulled)
-            .put("deficit", AudioLossCounter.EXPECTED_PACKET_COUNT_PER_MIN - (sent + nulled))
-            .put("usable", this.audioLossCounter.isDataUsable())  
-        );
+        .put("volume", player.getVolume());
+
+        int servicesRevision = servicesHandler.getRevision();
+        if (!delta || servicesRevision != sentServicesRevision) {
+            json.put("services", servicesHandler.encode());
+        }
+
+        int filtersRevision = filters.getRevision();
+        if (!delta || filtersRevision != sentFiltersRevision) {
+            json.put("filters", filters.encode());
+        }
+
+        int sent = this.audioLossCounter.getLastMinuteSent();
+        int nulled = this.audioLossCounter.getLastMinuteNulled();
+        int transcoded = this.audioLossCounter.getLastMinuteTranscoded();
+        boolean usable = this.audioLossCounter.isDataUsable();
+
+        if (!delta || sent != sentFramesSent || nulled != sentFramesNulled || transcoded != sentFramesTranscoded
+                || usable != sentFramesUsable) {
+            json.put("frameStats", new JSONObject()
+                .put("sent", sent)
+                .put("nulled", nulled)
+                .put("deficit", AudioLossCounter.EXPECTED_PACKET_COUNT_PER_MIN - (sent + nulled))
+                .put("passthrough", sent - transcoded)
+                .put("transcoded", transcoded)
+                .put("usable", usable)
+                .put("diagnostics", diagnostics.encode())
+                .put("bufferDurationMs", bufferTuner != null ? bufferTuner.getDuration() : playerManager.getFrameBufferDuration())
+            );
+        }
+
+        if (remember) {
+            sentServicesRevision = servicesRevision;
+            sentFiltersRevision = filtersRevision;
+            sentFramesSent = sent;
+            sentFramesNulled = nulled;
+            sentFramesTranscoded = transcoded;
+            sentFramesUsable = usable;
+        }
 
         return json;
     }
 
+    /**
+     * @return an update command which recreates this player, as accepted by {@link lavalink.server.io.PlayerFunHandlers#update}
+     */
+    public JSONObject snapshot() throws IOException {
+        JSONObject filtersJson = filters.encode();
+        // The volume filter is encoded as an object but parsed as a plain number
+        JSONObject volumeFilter = filtersJson.optJSONObject("volume");
+        if (volumeFilter != null) filtersJson.put("volume", volumeFilter.getFloat("volume"));
+
+        JSONObject json = new JSONObject()
+            .put("guildId", String.valueOf(guildId))
+            .put("volume", player.getVolume())
+            .put("pause", player.isPaused())
+            .put("filters", filtersJson)
+            .put("services", servicesHandler.encode());
+
+        AudioTrack broadcasting = broadcastTrack;
+        AudioTrack track = player.getPlayingTrack();
+        if (broadcasting != null) {
+            json.put("play", new JSONObject()
+                .put("track", Util.toMessage(playerManager, broadcasting))
+                .put("broadcast", true)
+                .put("pause", player.isPaused())
+            );
+        } else if (track != null) {
+            json.put("play", new JSONObject()
+                .put("track", Util.toMessage(playerManager, track))
+                .put("startTime", track.getPosition())
+                .put("pause", player.isPaused())
+            );
+        }
+
+        VoiceServerInfo voice = voiceServerInfo;
+        if (voice != null) {
+            json.put("voice", new JSONObject()
+                .put("sessionId", voice.getSessionId())
+                .put("event", new JSONObject()
+                    .put("endpoint", voice.getEndpoint())
+                    .put("token", voice.getToken())
+                )
+            );
+        }
+
+        return json;
+    }
+
+    /**
+     * Remembers the voice server the player was last connected to, so it can be restored.
+     */
+    public void setVoiceServerInfo(@Nullable VoiceServerInfo voiceServerInfo) {
+        this.voiceServerInfo = voiceServerInfo;
+    }
+
     public SocketContext getSocket() {
         return socketContext;
     }
@@ -196,55 +460,172 @@ public class Player extends AudioEventAdapter implements IPlayer {
         return audioLossCounter;
     }
 
-    private int getInterval() {
-        return serverConfig.getPlayerUpdateInterval();
+    /**
+     * @return why frames of this player are decoded and encoded again instead of passing the source opus through,
+     * or null if nothing here forces it. Sources which are not opus are transcoded regardless, see
+     * {@link #isOpusSource(AudioTrack)}.
+     */
+    @Nullable
+    public String getTranscodeReason() {
+        int revision = filters.getRevision() << 1;
+        int checked = checkedFilters;
+        if ((checked & ~1) != revision) {
+            checked = revision | (filters.isEnabled() ? 1 : 0);
+            checkedFilters = checked;
+        }
+
+        if ((checked & 1) != 0) return "filters";
+        if (player.getVolume() != 100) return "volume";
+        return null;
+    }
+
+    /**
+     * lavaplayer does not tell which tracks it decodes from opus, so this goes by source: cached frames are opus, and
+     * YouTube serves opus in WebM for all but a few tracks. Other sources are decoded from their own codec.
+     */
+    private static boolean isOpusSource(AudioTrack track) {
+        return track instanceof CachedOpusAudioTrack || track instanceof YoutubeAudioTrack;
     }
 
     public boolean isPlaying() {
-        return player.getPlayingTrack() != null && !player.isPaused();
+        return (player.getPlayingTrack() != null || broadcast != null) && !player.isPaused();
     }
 
     @Override
     public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
-        myFuture.cancel(false);
+        socketContext.getPlayerUpdateScheduler().cancel(this);
+        updateCounters();
+
+        FrameRecorder recording = recorder;
+        if (recording != null && recording.getTrack() == track) {
+            recorder = null;
+            if (endReason == AudioTrackEndReason.FINISHED) recording.finish();
+            else recording.abort();
+        }
     }
 
     @Override
     public void onTrackStart(AudioPlayer player, AudioTrack track) {
-        if (myFuture == null || myFuture.isCancelled()) {
-            myFuture = socketContext.getPlayerUpdateService().scheduleAtFixedRate(() -> {
-                if (socketContext.getSessionPaused()) return;
+        socketContext.getPlayerUpdateScheduler().schedule(this);
+        updateCounters();
+        opusSource = isOpusSource(track);
+        diagnostics.onRefill();
+        if (bufferTuner != null) bufferTuner.onRefill(true);
+    }
+
+    @Override
+    public void onPlayerPause(AudioPlayer player) {
+        updateCounters();
+    }
+
+    @Override
+    public void onPlayerResume(AudioPlayer player) {
+        updateCounters();
+    }
 
-                SocketServer.Companion.sendPlayerUpdate(socketContext, this);
-            }, 0, this.getInterval(), TimeUnit.SECONDS);
+    /**
+     * Brings the counters in line with the current state. Events may arrive from several threads, so this reads the
+     * state under the lock and applies the difference to what was counted before, rather than trusting the event.
+     */
+    private void updateCounters() {
+        synchronized (countersLock) {
+            boolean hasTrack = player.getPlayingTrack() != null || broadcast != null;
+            boolean playing = hasTrack && !player.isPaused();
+            boolean paused = hasTrack && player.isPaused();
+
+            if (destroyed || (playing == countedPlaying && paused == countedPaused)) return;
+            counters.add(0, Boolean.compare(playing, countedPlaying), Boolean.compare(paused, countedPaused));
+            countedPlaying = playing;
+            countedPaused = paused;
         }
     }
 
+    private static Counter.Child framesSentCounter(@Nullable String transcodeReason, boolean opusSource) {
+        if (transcodeReason == null) return opusSource ? passthroughFrames : sourceFrames;
+        return "filters".equals(transcodeReason) ? filtersFrames : volumeFrames;
+    }
+
     public void provideTo(MediaConnection connection) {
         connection.setAudioSender(new Provider(connection));
     }
 
+    /**
+     * Frames are copied from the frame buffer into a buffer owned by the provider, and from there into Koe's buffer,
+     * so that no array is allocated per frame.
+     */
     private class Provider extends OpusAudioFrameProvider {
+        private final ByteBuffer frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+        private final MutableAudioFrame frame = new MutableAudioFrame();
+        private int frameLength;
+        private boolean frameFromBroadcast;
+        @Nullable
+        private Broadcast readingFrom = null;
+        private Broadcast.Reader reader = null;
+
         public Provider(MediaConnection connection) {
             super(connection);
+            frame.setBuffer(frameBuffer);
         }
 
         @Override
         public boolean canProvide() {
-            lastFrame = player.provide();
+            boolean sample = diagnostics.shouldSample();
+            long start = sample ? System.nanoTime() : 0;
+
+            Broadcast current = broadcast;
+            if (current != null) {
+                if (current != readingFrom) {
+                    readingFrom = current;
+                    reader = new Broadcast.Reader();
+                }
+                frameLength = player.isPaused() ? -1 : current.read(reader, frameBuffer.array());
+                frameFromBroadcast = true;
+            } else {
+                frameLength = player.provide(frame) ? frame.getDataLength() : -1;
+                frameFromBroadcast = false;
+            }
 
-            if(lastFrame == null) {
+            // Broadcasts are buffered by the broadcast, not by this player
+            FrameBufferTuner tuner = frameFromBroadcast ? null : bufferTuner;
+            if (sample) {
+                double fill = bufferFill();
+                diagnostics.onSample(System.nanoTime() - start, fill);
+                if (tuner != null) tuner.onSample(fill);
+            }
+
+            if (frameLength < 0) {
+                boolean playing = isPlaying();
                 audioLossCounter.onLoss();
+                diagnostics.onNull(playing);
+                if (tuner != null) tuner.onNull(playing);
                 return false;
             } else {
+                diagnostics.onFrame();
+                if (tuner != null) tuner.onFrame();
                 return true;
             }
         }
 
+        /**
+         * @return the ratio of the frame buffer of the playing track in use, or -1 if there is none
+         */
+        private double bufferFill() {
+            return FrameBuffers.fill(player.getPlayingTrack());
+        }
+
         @Override
         public void retrieveOpusFrame(ByteBuf buf) {
-            audioLossCounter.onSuccess();
-            buf.writeBytes(lastFrame.getData());
+            // Broadcasts are decoded without this player's volume and filters
+            String transcodeReason = frameFromBroadcast ? null : getTranscodeReason();
+            boolean fromOpus = opusSource;
+            audioLossCounter.onSuccess(transcodeReason != null || !fromOpus);
+            framesSentCounter(transcodeReason, fromOpus).inc();
+            buf.writeBytes(frameBuffer.array(), 0, frameLength);
+
+            FrameRecorder recording = recorder;
+            if (recording == null || frameFromBroadcast) return;
+            if (transcodeReason != null) recording.abort();
+            else recording.append(frameBuffer.array(), frameLength, frame.getTimecode());
         }
     }
 
@@ -0,0 +1,82 @@
+package lavalink.server.player.broadcast;
+
+import com.sedmelluq.discord.lavaplayer.format.StandardAudioDataFormats;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame;
+import lavalink.server.player.Player;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A track decoded once and sent to every subscribed player. A ticker pulls one frame every 20ms into a small
+ * {@link FrameRing}, from which each player's audio sender reads at its own pace.
+ */
+public class Broadcast extends AudioEventAdapter {
+
+    private final BroadcastManager manager;
+    private final String key;
+    private final AudioPlayer player;
+    private final Set<Player> subscribers = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+    private final MutableAudioFrame frame = new MutableAudioFrame();
+    private final FrameRing ring = new FrameRing(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize());
+    private ScheduledFuture<?> ticker;
+
+    Broadcast(BroadcastManager manager, String key, AudioPlayer player) {
+        this.manager = manager;
+        this.key = key;
+        this.player = player;
+        frame.setBuffer(frameBuffer);
+        player.addListener(this);
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Set<Player> getSubscribers() {
+        return subscribers;
+    }
+
+    void start(AudioTrack track, ScheduledFuture<?> ticker) {
+        this.ticker = ticker;
+        player.playTrack(track);
+    }
+
+    void stop() {
+        if (ticker != null) ticker.cancel(false);
+        player.destroy();
+    }
+
+    /** Runs on the ticker thread only */
+    void tick() {
+        if (player.provide(frame)) ring.write(frameBuffer.array(), frame.getDataLength());
+    }
+
+    /**
+     * Copies the next frame for a reader into the target array.
+     *
+     * @return the length of the frame, or -1 if there is no new frame yet
+     */
+    public int read(Reader reader, byte[] target) {
+        return ring.read(reader, target);
+    }
+
+    @Override
+    public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+        if (endReason != AudioTrackEndReason.CLEANUP) manager.ended(this, endReason);
+    }
+
+    /**
+     * The position of one audio sender in a broadcast. Only used by that sender's thread.
+     */
+    public static class Reader {
+        long nextSeq = -1;
+    }
+}
@@ -0,0 +1,112 @@
+package lavalink.server.player.broadcast;
+
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import io.prometheus.client.Gauge;
+import lavalink.server.player.Player;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one decoding pipeline between all players broadcasting the same track, so that the cost of a stream does
+ * not grow with the number of guilds listening to it. A broadcast starts with its first player and stops with its
+ * last one.
+ */
+@Service
+public class BroadcastManager {
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastManager.class);
+
+    private static final long FRAME_DURATION_MS = 20;
+
+    private static final Gauge broadcasts = Gauge.build()
+            .name("lavalink_broadcasts")
+            .help("Tracks being decoded once for several players")
+            .register();
+
+    private static final Gauge listeners = Gauge.build()
+            .name("lavalink_broadcast_players")
+            .help("Players receiving a broadcast")
+            .register();
+
+    private final AudioPlayerManager audioPlayerManager;
+    private final Map<String, Broadcast> active = new HashMap<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "broadcast-ticker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BroadcastManager(AudioPlayerManager audioPlayerManager) {
+        this.audioPlayerManager = audioPlayerManager;
+    }
+
+    /**
+     * Adds the player to the broadcast of the track, which is started if nobody is broadcasting it yet
+     */
+    public synchronized Broadcast join(Player player, AudioTrack track) {
+        String key = track.getSourceManager().getSourceName() + ":" + track.getIdentifier();
+        Broadcast broadcast = active.get(key);
+        if (broadcast == null) {
+            broadcast = new Broadcast(this, key, audioPlayerManager.createPlayer());
+            Broadcast started = broadcast;
+            broadcast.start(track.makeClone(), ticker.scheduleAtFixedRate(() -> {
+                try {
+                    started.tick();
+                } catch (Exception e) {
+                    log.error("Exception while pulling a broadcast frame", e);
+                }
+            }, 0, FRAME_DURATION_MS, TimeUnit.MILLISECONDS));
+            active.put(key, broadcast);
+            broadcasts.inc();
+            log.info("Started broadcast of {}", key);
+        }
+
+        if (broadcast.getSubscribers().add(player)) listeners.inc();
+        return broadcast;
+    }
+
+    /**
+     * Removes the player from the broadcast, which is stopped if it was the last player
+     */
+    public synchronized void leave(Player player, Broadcast broadcast) {
+        if (!broadcast.getSubscribers().remove(player)) return;
+        listeners.dec();
+
+        if (broadcast.getSubscribers().isEmpty() && active.remove(broadcast.getKey(), broadcast)) {
+            broadcast.stop();
+            broadcasts.dec();
+            log.info("Stopped broadcast of {}", broadcast.getKey());
+        }
+    }
+
+    /**
+     * Called when the broadcast track ends by itself, for instance because the stream went offline
+     */
+    void ended(Broadcast broadcast, AudioTrackEndReason reason) {
+        synchronized (this) {
+            if (!active.remove(broadcast.getKey(), broadcast)) return;
+            broadcasts.dec();
+        }
+
+        log.info("Broadcast of {} ended with reason {}", broadcast.getKey(), reason);
+        for (Player player : broadcast.getSubscribers()) {
+            player.onBroadcastEnded(broadcast, reason);
+        }
+        broadcast.stop();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+}
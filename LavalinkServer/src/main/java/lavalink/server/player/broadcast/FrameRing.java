@@ -0,0 +1,58 @@
+package lavalink.server.player.broadcast;
+
+/**
+ * The frames of a broadcast, written by its ticker and read by every subscribed audio sender without locking. Readers
+ * start near the newest frame and skip ahead if they fall behind, so everyone hears the live edge.
+ */
+class FrameRing {
+
+    /** Frames kept in the ring, 320ms */
+    static final int SIZE = 16;
+    /** How far behind the newest frame readers start, to absorb jitter between the ticker and the senders */
+    static final int JITTER_FRAMES = 3;
+
+    private final byte[][] ring;
+    private final int[] lengths = new int[SIZE];
+    /** The sequence number of the newest frame in the ring, written after the frame itself */
+    private volatile long latestSeq = -1;
+
+    FrameRing(int maxFrameSize) {
+        ring = new byte[SIZE][maxFrameSize];
+    }
+
+    /** Called by one writer thread only */
+    void write(byte[] frame, int length) {
+        long seq = latestSeq + 1;
+        int slot = (int) (seq % SIZE);
+        System.arraycopy(frame, 0, ring[slot], 0, length);
+        lengths[slot] = length;
+        latestSeq = seq;
+    }
+
+    /**
+     * Copies the next frame for a reader into the target array.
+     *
+     * @return the length of the frame, or -1 if there is no new frame yet
+     */
+    int read(Broadcast.Reader reader, byte[] target) {
+        long latest = latestSeq;
+        if (latest < 0) return -1;
+
+        if (reader.nextSeq < 0 || latest - reader.nextSeq >= SIZE - JITTER_FRAMES) {
+            reader.nextSeq = Math.max(0, latest - JITTER_FRAMES); // Joining, or fell too far behind
+        }
+        if (reader.nextSeq > latest) return -1;
+
+        int slot = (int) (reader.nextSeq % SIZE);
+        int length = lengths[slot];
+        System.arraycopy(ring[slot], 0, target, 0, length);
+
+        // The writer may have overwritten the slot while it was copied
+        if (latestSeq - reader.nextSeq >= SIZE - 1) {
+            reader.nextSeq = -1;
+            return -1;
+        }
+        reader.nextSeq++;
+        return length;
+    }
+}
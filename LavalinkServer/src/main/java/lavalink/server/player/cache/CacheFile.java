@@ -0,0 +1,94 @@
+package lavalink.server.player.cache;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a cache file: a header, the offset of every frame plus the end offset, then the frames back to back.
+ * Frames are 20ms each, so the frame for a position is found by division.
+ */
+class CacheFile {
+
+    static final int SAMPLE_RATE = 48000;
+    static final int CHANNELS = 2;
+    static final int FRAME_DURATION_MS = 20;
+
+    private static final int MAGIC = 0x4C4F4643; // LOFC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+
+    private final ByteBuffer buffer;
+    private final int frameCount;
+    private final int dataStart;
+
+    private CacheFile(ByteBuffer buffer, int frameCount) {
+        this.buffer = buffer;
+        this.frameCount = frameCount;
+        this.dataStart = HEADER_SIZE + (frameCount + 1) * 4;
+    }
+
+    static CacheFile read(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a frame cache file");
+        }
+        int frameCount = buffer.getInt(8);
+        CacheFile file = new CacheFile(buffer, frameCount);
+        if (frameCount < 0 || file.dataStart > buffer.limit()
+                || file.dataStart + file.offset(frameCount) != buffer.limit()) {
+            throw new IOException("Truncated frame cache file");
+        }
+        return file;
+    }
+
+    /**
+     * @param data the frames back to back, of which the first offsets[frameCount] bytes are copied
+     */
+    static void write(OutputStream out, int[] offsets, int frameCount, InputStream data) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(frameCount);
+        for (int i = 0; i <= frameCount; i++) {
+            dataOut.writeInt(offsets[i]);
+        }
+
+        byte[] buffer = new byte[8192];
+        int remaining = offsets[frameCount];
+        while (remaining > 0) {
+            int read = data.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0) throw new EOFException("Frame data ended " + remaining + " bytes early");
+            dataOut.write(buffer, 0, read);
+            remaining -= read;
+        }
+        dataOut.flush();
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the index of the frame playing at the given position, or the frame count past the end
+     */
+    int frameAt(long positionMs) {
+        return (int) Math.min(Math.max(0, positionMs) / FRAME_DURATION_MS, frameCount);
+    }
+
+    /**
+     * @return a view of the frame, which shares the underlying mapping
+     */
+    ByteBuffer frame(int index) {
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(dataStart + offset(index));
+        frame.limit(dataStart + offset(index + 1));
+        return frame.slice();
+    }
+
+    private int offset(int index) {
+        return buffer.getInt(HEADER_SIZE + index * 4);
+    }
+}
@@ -0,0 +1,72 @@
+package lavalink.server.player.cache;
+
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.BaseAudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays the opus frames of a track from a memory-mapped cache file instead of fetching and decoding the source.
+ * Frames are routed like those of any opus container, so they pass through untouched unless the volume or filters
+ * require transcoding. Encodes and reports itself as the original track.
+ */
+public class CachedOpusAudioTrack extends BaseAudioTrack {
+
+    private final AudioTrack original;
+    private final Path file;
+    private volatile int frameIndex = 0;
+
+    CachedOpusAudioTrack(AudioTrack original, Path file) {
+        super(original.getInfo());
+        this.original = original;
+        this.file = file;
+        setUserData(original.getUserData());
+    }
+
+    public AudioTrack getOriginal() {
+        return original;
+    }
+
+    @Override
+    public void process(LocalAudioTrackExecutor executor) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CacheFile frames = CacheFile.read(mapped);
+            OpusPacketRouter router = new OpusPacketRouter(executor.getProcessingContext(),
+                    CacheFile.SAMPLE_RATE, CacheFile.CHANNELS);
+
+            try {
+                executor.executeProcessingLoop(() -> {
+                    while (frameIndex < frames.getFrameCount()) {
+                        ByteBuffer frame = frames.frame(frameIndex);
+                        frameIndex++;
+                        router.process(frame);
+                    }
+                    router.flush();
+                }, position -> {
+                    frameIndex = frames.frameAt(position);
+                    router.seekPerformed(position, (long) frameIndex * CacheFile.FRAME_DURATION_MS);
+                });
+            } finally {
+                router.close();
+            }
+        }
+    }
+
+    @Override
+    public AudioSourceManager getSourceManager() {
+        return original.getSourceManager();
+    }
+
+    @Override
+    protected AudioTrack makeShallowClone() {
+        return new CachedOpusAudioTrack(original.makeClone(), file);
+    }
+}
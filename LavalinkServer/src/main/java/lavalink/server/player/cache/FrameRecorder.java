@@ -0,0 +1,175 @@
+package lavalink.server.player.cache;
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects the frames a player sends for one track, to be stored in the cache once the track has finished.
+ * Only a gapless run of frames from the start of the track is kept; a seek or a skipped frame aborts the recording.
+ * Frames are gathered in chunks which the cache's writer thread spills to a temporary file, so a recording holds
+ * little more than its frame offsets in memory and the audio sending thread never waits for the disk. If the disk falls
+ * behind by more than a few chunks, the recording is given up. Frames are appended by the audio sending thread only,
+ * which is also the thread lavaplayer reports a finished track on.
+ */
+public class FrameRecorder {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    /** Chunks a recording may have, full ones waiting for the writer included */
+    private static final int MAX_CHUNKS = 4;
+
+    private final OpusFrameCache cache;
+    private final String key;
+    private final AudioTrack track;
+    private final long duration;
+    private final Path dataFile;
+    /** Only accessed by the writer thread, after the constructor */
+    private final FileChannel data;
+    private final Queue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<>();
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private int chunkCount = 1;
+    private final int[] offsets;
+    private int frameCount = 0;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile boolean writeFailed = false;
+
+    FrameRecorder(OpusFrameCache cache, String key, AudioTrack track, Path dataFile, int maxFrames) throws IOException {
+        this.cache = cache;
+        this.key = key;
+        this.track = track;
+        this.duration = track.getDuration();
+        this.dataFile = dataFile;
+        this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // Room for every frame of the track plus a couple of rounding frames, and the end offset
+        long frames = Math.min(maxFrames, duration / CacheFile.FRAME_DURATION_MS + 2);
+        this.offsets = new int[(int) frames + 1];
+    }
+
+    public AudioTrack getTrack() {
+        return track;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Path getDataFile() {
+        return dataFile;
+    }
+
+    int[] getOffsets() {
+        return offsets;
+    }
+
+    int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @param timecode the position of the frame in the track, in milliseconds
+     */
+    public void append(byte[] frame, int length, long timecode) {
+        if (done.get()) return;
+
+        long expected = (long) frameCount * CacheFile.FRAME_DURATION_MS;
+        if (frameCount == 0 && timecode != 0) {
+            return; // A leftover frame of the previous track, or the track was started at an offset
+        } else if (timecode != expected || frameCount + 1 >= offsets.length) {
+            abort();
+            return;
+        }
+
+        if (chunk.remaining() < length && !handOffChunk()) {
+            abort();
+            return;
+        }
+
+        chunk.put(frame, 0, length);
+        offsets[frameCount + 1] = offsets[frameCount] + length;
+        frameCount++;
+    }
+
+    public void abort() {
+        if (!done.compareAndSet(false, true)) return;
+        OpusFrameCache.recordings.labels("aborted").inc();
+        cache.discard(this);
+    }
+
+    /**
+     * Stores the recording if it covers the whole track. Called once the track has finished.
+     */
+    public void finish() {
+        // The last frame may be cut short, so allow for rounding
+        if ((long) frameCount * CacheFile.FRAME_DURATION_MS < duration - CacheFile.FRAME_DURATION_MS * 2) {
+            abort();
+            return;
+        }
+        if (!done.compareAndSet(false, true)) return;
+
+        chunk.flip();
+        cache.store(this, chunk);
+    }
+
+    /**
+     * Passes the full chunk to the writer thread and continues in a free one
+     *
+     * @return false if the writer is too far behind or failed, in which case the recording should be given up
+     */
+    private boolean handOffChunk() {
+        if (writeFailed) return false;
+        ByteBuffer next = freeChunks.poll();
+        if (next == null) {
+            if (chunkCount >= MAX_CHUNKS) return false;
+            next = ByteBuffer.allocate(CHUNK_SIZE);
+            chunkCount++;
+        }
+
+        chunk.flip();
+        if (!cache.write(this, chunk)) {
+            freeChunks.add(next);
+            return false;
+        }
+        chunk = next;
+        return true;
+    }
+
+    /**
+     * Appends a chunk to the temporary file and frees it. Called by the cache on its writer thread
+     */
+    void write(ByteBuffer full) {
+        try {
+            while (!writeFailed && full.hasRemaining()) {
+                data.write(full);
+            }
+        } catch (IOException e) {
+            writeFailed = true;
+        }
+        full.clear();
+        freeChunks.add(full);
+    }
+
+    boolean hasWriteFailed() {
+        return writeFailed;
+    }
+
+    /**
+     * Closes and deletes the temporary file. Called by the cache once the recording is stored or discarded.
+     */
+    void close() {
+        try {
+            data.close();
+            Files.deleteIfExists(dataFile);
+        } catch (IOException ignored) {
+            // Deleted with the other temporary files on the next start
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package lavalink.server.player.cache;
+
+import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat;
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import lavalink.server.config.FrameCacheConfig;
+import lavalink.server.config.ServerConfig;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Nullable;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An opt-in disk cache of the opus frames sent for tracks, keyed by source and identifier. Tracks played without
+ * filters at full volume are recorded as they play, and later plays of a cached track read the frames from a
+ * memory-mapped file instead of fetching and decoding the source. The least recently played tracks are evicted once
+ * the cache grows past its configured size.
+ */
+@Service
+public class OpusFrameCache {
+
+    private static final Logger log = LoggerFactory.getLogger(OpusFrameCache.class);
+
+    private static final String EXTENSION = ".opusframes";
+    private static final String RECORDING_EXTENSION = ".rec.tmp";
+    /** Tracks longer than this are not cached, as a recording keeps the offset of every frame in memory */
+    private static final int MAX_FRAMES = 60 * 60 * 1000 / CacheFile.FRAME_DURATION_MS;
+
+    private static final Counter requests = Counter.build()
+            .name("lavalink_frame_cache_requests_total")
+            .help("Track plays looked up in the frame cache")
+            .labelNames("result")
+            .register();
+
+    static final Counter recordings = Counter.build()
+            .name("lavalink_frame_cache_recordings_total")
+            .help("Track recordings for the frame cache: stored, aborted, failed to write, " +
+                    "or skipped because too many tracks were being recorded")
+            .labelNames("outcome")
+            .register();
+
+    private static final Gauge size = Gauge.build()
+            .name("lavalink_frame_cache_size_bytes")
+            .help("Size of the frame cache on disk")
+            .register();
+
+    private static class Entry {
+        final Path file;
+        final long size;
+        volatile long lastUsed;
+
+        Entry(Path file, long size, long lastUsed) {
+            this.file = file;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final AudioPlayerManager audioPlayerManager;
+    private final FrameCacheConfig config;
+    private final Path directory;
+    private final long maxSize;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    /** Keys of the tracks being recorded, so that each is recorded by one player at a time */
+    private final Set<String> recording = new HashSet<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "frame-cache-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OpusFrameCache(ServerConfig serverConfig, AudioPlayerManager audioPlayerManager) {
+        this.audioPlayerManager = audioPlayerManager;
+        config = serverConfig.getFrameCache() != null ? serverConfig.getFrameCache() : new FrameCacheConfig();
+        directory = Paths.get(config.getPath());
+        maxSize = config.getMaxSizeMb() * 1024 * 1024;
+        if (config.getEnabled()) load();
+    }
+
+    public boolean isEnabled() {
+        return config.getEnabled();
+    }
+
+    /**
+     * @return a track playing the cached frames of the given track, or null if it is not cached
+     */
+    @Nullable
+    public AudioTrack open(AudioTrack track) {
+        if (!isEnabled() || !isCacheable(track)) return null;
+
+        Entry entry = entries.get(fileName(track));
+        if (entry == null) {
+            requests.labels("miss").inc();
+            return null;
+        }
+        requests.labels("hit").inc();
+        entry.lastUsed = System.currentTimeMillis();
+        return new CachedOpusAudioTrack(track, entry.file);
+    }
+
+    /**
+     * @return a recorder for the given track, or null if it should not be recorded
+     */
+    @Nullable
+    public FrameRecorder record(AudioTrack track) {
+        if (!isEnabled() || !isCacheable(track)) return null;
+        if (track.getDuration() > (long) MAX_FRAMES * CacheFile.FRAME_DURATION_MS) return null;
+
+        String key = fileName(track);
+        if (entries.containsKey(key)) return null;
+        synchronized (recording) {
+            if (recording.contains(key)) return null;
+            if (recording.size() >= config.getMaxRecordings()) {
+                recordings.labels("skipped").inc();
+                return null;
+            }
+            recording.add(key);
+        }
+
+        try {
+            return new FrameRecorder(this, key, track, directory.resolve(key + RECORDING_EXTENSION), MAX_FRAMES);
+        } catch (IOException e) {
+            log.warn("Failed to start recording {} for the frame cache", key, e);
+            recordings.labels("failed").inc();
+            synchronized (recording) {
+                recording.remove(key);
+            }
+            return null;
+        }
+    }
+
+    private boolean isCacheable(AudioTrack track) {
+        return !(track instanceof CachedOpusAudioTrack)
+                && !track.getInfo().isStream
+                && track.getSourceManager() != null
+                && track.getInfo().identifier != null;
+    }
+
+    /**
+     * Frames depend on how they were encoded as much as on the track, so the output format and encoder settings are
+     * part of the key
+     */
+    private String fileName(AudioTrack track) {
+        AudioConfiguration configuration = audioPlayerManager.getConfiguration();
+        AudioDataFormat format = configuration.getOutputFormat();
+        String key = track.getSourceManager().getSourceName() + ":" + track.getInfo().identifier
+                + ":" + format.codecName() + "/" + format.sampleRate + "/" + format.channelCount
+                + "/" + format.chunkSampleCount
+                + ":" + configuration.getOpusEncodingQuality() + "/" + configuration.getResamplingQuality();
+        return DigestUtils.sha1Hex(key) + EXTENSION;
+    }
+
+    /**
+     * Appends a full chunk of a recording to its temporary file, on the writer thread
+     *
+     * @return false if the writer is shut down
+     */
+    boolean write(FrameRecorder recorder, ByteBuffer chunk) {
+        try {
+            writer.execute(() -> recorder.write(chunk));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the last chunk of a finished recording, then the recording to the cache, on the writer thread
+     */
+    void store(FrameRecorder recorder, ByteBuffer lastChunk) {
+        try {
+            writer.execute(() -> {
+                try {
+                    recorder.write(lastChunk);
+                    if (recorder.hasWriteFailed()) {
+                        recordings.labels("failed").inc();
+                    } else {
+                        save(recorder);
+                    }
+                } finally {
+                    release(recorder);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            recordings.labels("failed").inc();
+            release(recorder);
+        }
+    }
+
+    /**
+     * Drops an aborted recording. Its file is closed on the writer thread, after the chunks it was still writing.
+     */
+    void discard(FrameRecorder recorder) {
+        try {
+            writer.execute(() -> release(recorder));
+        } catch (RejectedExecutionException e) {
+            release(recorder);
+        }
+    }
+
+    private void release(FrameRecorder recorder) {
+        recorder.close();
+        synchronized (recording) {
+            recording.remove(recorder.getKey());
+        }
+    }
+
+    private void save(FrameRecorder recorder) {
+        String key = recorder.getKey();
+        Path file = directory.resolve(key);
+        Path temp = directory.resolve(key + ".tmp");
+        long fileSize;
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp));
+                 InputStream data = Files.newInputStream(recorder.getDataFile())) {
+                CacheFile.write(out, recorder.getOffsets(), recorder.getFrameCount(), data);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileSize = Files.size(file);
+        } catch (IOException e) {
+            log.error("Failed to write frame cache file {}", file, e);
+            recordings.labels("failed").inc();
+            return;
+        }
+
+        entries.put(key, new Entry(file, fileSize, System.currentTimeMillis()));
+        size.set(totalSize.addAndGet(fileSize));
+        recordings.labels("stored").inc();
+        evict();
+    }
+
+    /**
+     * Deletes the least recently played tracks until the cache fits its size. Runs on the writer thread only.
+     */
+    private void evict() {
+        if (totalSize.get() <= maxSize) return;
+
+        // Sort by a copy of the times, as plays keep updating them
+        List<Map.Entry<String, Long>> byLastUse = new ArrayList<>();
+        entries.forEach((key, entry) -> byLastUse.add(new AbstractMap.SimpleEntry<>(key, entry.lastUsed)));
+        byLastUse.sort(Map.Entry.comparingByValue());
+
+        for (Map.Entry<String, Long> candidate : byLastUse) {
+            if (totalSize.get() <= maxSize) return;
+            Entry entry = entries.remove(candidate.getKey());
+            if (entry == null) continue;
+            try {
+                // Players still reading the file keep their mapping
+                Files.deleteIfExists(entry.file);
+            } catch (IOException e) {
+                log.warn("Failed to delete frame cache file {}", entry.file, e);
+            }
+            size.set(totalSize.addAndGet(-entry.size));
+        }
+    }
+
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".tmp")) {
+                        Files.deleteIfExists(file);
+                    } else if (name.endsWith(EXTENSION)) {
+                        long fileSize = Files.size(file);
+                        entries.put(name, new Entry(file, fileSize, Files.getLastModifiedTime(file).toMillis()));
+                        totalSize.addAndGet(fileSize);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to load the frame cache in {}", directory, e);
+        }
+        size.set(totalSize.get());
+        log.info("Loaded {} tracks from the frame cache", entries.size());
+        writer.execute(this::evict);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
+    }
+}
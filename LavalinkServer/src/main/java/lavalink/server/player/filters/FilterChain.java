@@ -33,6 +33,7 @@ public class FilterChain {
     private final VolumeConfig volumeConfig = new VolumeConfig();
     private final Map<Class<? extends FilterConfig>, FilterConfig> filters = new HashMap<>();
     private final AudioPlayer player;
+    private volatile int revision;
     
     public FilterChain(AudioPlayer player) {
         filters.put(channelMixConfig.getClass(), channelMixConfig);
@@ -70,6 +71,7 @@ public class FilterChain {
                     throw new IllegalArgumentException("Duplicate configuration name " + c.getFilterName());
                 }
             }
+            markChanged();
             return config;
         });
     }
@@ -97,6 +99,17 @@ public class FilterChain {
         return player;
     }
 
+    /**
+     * @return a number that changes whenever the filter configuration may have changed
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    public void markChanged() {
+        revision++;
+    }
+
     public ChannelMixConfig getChannelMixConfig() {
         return channelMixConfig;
     }
@@ -240,6 +253,7 @@ public class FilterChain {
             VolumeConfig volumeConfig = filterChain.getVolumeConfig();
             volumeConfig.setVolume(json.optFloat("volume", volumeConfig.getVolume()));
         }
+        filterChain.markChanged();
         filterChain.getPlayer().setFilterFactory(filterChain.factory());
     }
 }
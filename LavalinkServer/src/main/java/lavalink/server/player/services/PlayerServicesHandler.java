@@ -20,6 +20,8 @@ public class PlayerServicesHandler {
     private boolean sponsorblock = false;
     private List<String> sponsorblockCategories = new ArrayList<>();
 
+    private volatile int revision;
+
     public PlayerServicesHandler(Player player) {
         this.player = player;
     }
@@ -34,6 +36,7 @@ public class PlayerServicesHandler {
 
     public void setSponsorblock(boolean sponsorblock) {
         this.sponsorblock = sponsorblock;
+        this.revision++;
     }
 
     public List<String> getSponsorblockCategories() {
@@ -42,6 +45,14 @@ public class PlayerServicesHandler {
 
     public void setSponsorblockCategories(List<String> categories) {
         this.sponsorblockCategories = categories;
+        this.revision++;
+    }
+
+    /**
+     * @return a number that changes whenever the service configuration may have changed
+     */
+    public int getRevision() {
+        return this.revision;
     }
 
     public JSONObject encode() {
@@ -75,6 +86,7 @@ public class PlayerServicesHandler {
                     this.sponsorblockCategories.add(o.toString());
                 }
             }
+            this.revision++;
         }
     }
 }
@@ -3,6 +3,7 @@ package lavalink.server.player.services.sponsorblock;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.TrackMarker;
 import com.sedmelluq.discord.lavaplayer.track.TrackMarkerHandler;
+import lavalink.server.io.EventType;
 import lavalink.server.player.Player;
 import lavalink.server.player.services.PlayerServicesHandler;
 import lavalink.server.util.Util;
@@ -36,19 +37,22 @@ public class SegmentHandler implements TrackMarkerHandler {
         if (!this.servicesHandler.isSponsorblockEnabled()) return;
 
         track.setPosition(segment.getEndTime());
-        JSONObject json = new JSONObject()
-            .put("op", "event")
-            .put("event", "SponsorblockSegmentSkipped")
-            .put("guildId", this.player.getGuildId())
-            .put("segment", segment.encode());
-
-        try {
-            json.put("track", Util.toMessage(this.player.getAudioPlayerManager(), track));
-        } catch (IOException e) {
-            json.put("track", JSONObject.NULL);
+        if (this.player.getSocket().wants(EventType.SPONSORBLOCK_SEGMENT_SKIPPED)) {
+            JSONObject json = new JSONObject()
+                .put("op", "event")
+                .put("event", "SponsorblockSegmentSkipped")
+                .put("guildId", this.player.getGuildId())
+                .put("segment", segment.encode());
+
+            try {
+                json.put("track", Util.toMessage(this.player.getAudioPlayerManager(), track));
+            } catch (IOException e) {
+                json.put("track", JSONObject.NULL);
+            }
+
+            this.player.getSocket().sendMessage(json);
         }
 
-        this.player.getSocket().sendMessage(json);
         this.segmentIndex++;
         if (this.segmentIndex < segments.size()) {
             track.setMarker(new TrackMarker(this.getCurrentSegment().getStartTime(), this));
@@ -3,6 +3,7 @@ package lavalink.server.player.services.sponsorblock;
 import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
 import com.sedmelluq.discord.lavaplayer.track.TrackMarker;
+import lavalink.server.io.EventType;
 import lavalink.server.player.Player;
 import lavalink.server.player.services.PlayerServicesHandler;
 import lavalink.server.util.Util;
@@ -62,24 +63,28 @@ public class SponsorblockHandler {
             }
 
             if (!segments.isEmpty()) {
-                JSONObject json = new JSONObject()
-                        .put("op", "event")
-                        .put("event", "SponsorblockSegmentLoaded")
-                        .put("guildId", servicesHandler.getPlayer().getGuildId())
-                        .put("segments",
-                                new JSONArray(segments.stream().map(Segment::encode).collect(Collectors.toList())));
+                if (servicesHandler.getPlayer().getSocket().wants(EventType.SPONSORBLOCK_SEGMENT_LOADED)) {
+                    JSONObject json = new JSONObject()
+                            .put("op", "event")
+                            .put("event", "SponsorblockSegmentLoaded")
+                            .put("guildId", servicesHandler.getPlayer().getGuildId())
+                            .put("segments",
+                                    new JSONArray(segments.stream().map(Segment::encode).collect(Collectors.toList())));
 
-                try {
-                    json.put("track", Util.toMessage(servicesHandler.getPlayer().getAudioPlayerManager(), track));
-                } catch (Exception e) {
-                    json.put("track", JSONObject.NULL);
-                }
+                    try {
+                        json.put("track", Util.toMessage(servicesHandler.getPlayer().getAudioPlayerManager(), track));
+                    } catch (Exception e) {
+                        json.put("track", JSONObject.NULL);
+                    }
 
-                servicesHandler.getPlayer().getSocket().sendMessage(json);
+                    servicesHandler.getPlayer().getSocket().sendMessage(json);
+                }
                 track.setMarker(new TrackMarker(segments.get(0).getStartTime(),
                         new SegmentHandler(servicesHandler.getPlayer(), track, segments)));
             }
         } catch (FriendlyException err) {
+            if (!servicesHandler.getPlayer().getSocket().wants(EventType.SPONSORBLOCK_SEGMENT_FAILED)) return;
+
             JSONObject out = new JSONObject()
                     .put("op", "event")
                     .put("event", "SponsorblockSegmentFailed")
@@ -0,0 +1,87 @@
+package lavalink.server.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Translates between org.json trees and CBOR (RFC 7049), used for clients that negotiated the binary protocol.
+ * Values are written the same way {@link JSONObject#toString()} would write them.
+ */
+public class CborCodec {
+
+    private static final CBORFactory factory = new CBORFactory();
+
+    public static byte[] encode(JSONObject json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = factory.createGenerator(out)) {
+            PayloadWriter.writeObject(generator, json);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Byte strings are decoded as base64 strings, which allows clients to send encoded tracks without base64 overhead.
+     *
+     * @throws IOException if the data is not a CBOR map
+     */
+    public static JSONObject decode(byte[] data, int offset, int length) throws IOException {
+        try (JsonParser parser = factory.createParser(data, offset, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a CBOR map");
+            }
+            return readObject(parser);
+        }
+    }
+
+    private static JSONObject readObject(JsonParser parser) throws IOException {
+        JSONObject json = new JSONObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            json.put(key, readValue(parser, parser.nextToken()));
+        }
+        return json;
+    }
+
+    private static JSONArray readArray(JsonParser parser) throws IOException {
+        JSONArray array = new JSONArray();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            array.put(readValue(parser, token));
+        }
+        return array;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == null) throw new IOException("Unexpected end of CBOR data");
+
+        switch (token) {
+            case START_OBJECT:
+                return readObject(parser);
+            case START_ARRAY:
+                return readArray(parser);
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_NULL:
+                return JSONObject.NULL;
+            case VALUE_EMBEDDED_OBJECT:
+                return Base64.encodeBase64String(parser.getBinaryValue());
+            default:
+                throw new IOException("Unexpected CBOR token " + token);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package lavalink.server.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.connector.PooledByteBuffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serializes org.json trees straight to UTF-8 JSON or CBOR without building intermediate strings.
+ * The JSON is equivalent to {@link JSONObject#toString()}, with the same structure and values, but not the same text:
+ * numbers and escapes follow Jackson's rules (org.json also escapes {@code </}), and NaN and infinite numbers, which
+ * org.json refuses, are written as the strings Jackson makes of them.
+ * <p>
+ * Each thread serializes into its own reusable buffer. Player updates are copied from it once, into a buffer taken
+ * from the websocket's pool. Sequenced messages are copied once to be kept for replays, and that copy is copied again
+ * into the pool's buffer. Payloads are still built as org.json trees before they get here, as the resume queue, slow
+ * client handling and the plugin API work with those; this only removes the string building after them.
+ */
+public class PayloadWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Buffers that grew beyond this are not kept around after use */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    /**
+     * @return this thread's buffer containing the payload, valid until the next call on the same thread
+     */
+    public static Buffer write(JSONObject json, JsonFactory factory) throws IOException {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = factory.createGenerator(buffer)) {
+            writeObject(generator, json);
+        }
+        return buffer;
+    }
+
+    /**
+     * Like {@link #write(JSONObject, JsonFactory)}, with a seq field added to the payload as it is written
+     */
+    public static Buffer write(JSONObject json, JsonFactory factory, long seq) throws IOException {
+        Buffer buffer = buffers.get();
+        buffer.reset();
+        try (JsonGenerator generator = factory.createGenerator(buffer)) {
+            generator.writeStartObject();
+            writeFields(generator, json);
+            generator.writeNumberField("seq", seq);
+            generator.writeEndObject();
+        }
+        return buffer;
+    }
+
+    /**
+     * Copies an encoded payload into a buffer of the given pool, or wraps it if it does not fit into one.
+     * Ownership of the returned buffer passes to the caller; the array must not be modified afterwards.
+     */
+    public static PooledByteBuffer copyTo(byte[] data, ByteBufferPool pool) {
+        if (data.length <= pool.getBufferSize()) return copyToPooled(data, data.length, pool);
+        return new HeapBuffer(ByteBuffer.wrap(data));
+    }
+
+    private static PooledByteBuffer copyToPooled(byte[] data, int length, ByteBufferPool pool) {
+        PooledByteBuffer pooled = pool.allocate();
+        ByteBuffer buffer = pooled.getBuffer();
+        buffer.clear();
+        buffer.put(data, 0, length);
+        buffer.flip();
+        return pooled;
+    }
+
+    static void writeObject(JsonGenerator generator, JSONObject json) throws IOException {
+        generator.writeStartObject();
+        writeFields(generator, json);
+        generator.writeEndObject();
+    }
+
+    private static void writeFields(JsonGenerator generator, JSONObject json) throws IOException {
+        for (String key : json.keySet()) {
+            generator.writeFieldName(key);
+            writeValue(generator, json.opt(key));
+        }
+    }
+
+    private static void writeArray(JsonGenerator generator, JSONArray array) throws IOException {
+        generator.writeStartArray();
+        for (Object value : array) {
+            writeValue(generator, value);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Float) {
+            generator.writeNumber((Float) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof BigInteger) {
+            generator.writeNumber((BigInteger) value);
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumber((BigDecimal) value);
+        } else if (value instanceof Number) {
+            generator.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof JSONObject) {
+            writeObject(generator, (JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray(generator, (JSONArray) value);
+        } else if (value instanceof Map) {
+            writeObject(generator, new JSONObject((Map<?, ?>) value));
+        } else if (value instanceof Collection) {
+            writeArray(generator, new JSONArray((Collection<?>) value));
+        } else if (value.getClass().isArray()) {
+            writeArray(generator, new JSONArray(value));
+        } else if (value instanceof Enum) {
+            generator.writeString(((Enum<?>) value).name());
+        } else if (value instanceof JSONString) {
+            writeValue(generator, new JSONTokener(((JSONString) value).toJSONString()).nextValue());
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+
+    public static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(INITIAL_CAPACITY);
+        }
+
+        @Override
+        public void reset() {
+            if (buf.length > MAX_RETAINED_CAPACITY) buf = new byte[INITIAL_CAPACITY];
+            super.reset();
+        }
+
+        /**
+         * Copies the payload into a buffer of the given pool, or onto the heap if it does not fit into one.
+         * Ownership of the returned buffer passes to the caller.
+         */
+        public PooledByteBuffer copyTo(ByteBufferPool pool) {
+            if (count <= pool.getBufferSize()) return copyToPooled(buf, count, pool);
+            return new HeapBuffer(ByteBuffer.wrap(toByteArray()));
+        }
+
+        public String toUtf8String() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class HeapBuffer implements PooledByteBuffer {
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        private HeapBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+    }
+}
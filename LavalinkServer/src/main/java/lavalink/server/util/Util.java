@@ -26,6 +26,7 @@ import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput;
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput;
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import lavalink.server.player.cache.CachedOpusAudioTrack;
 import org.apache.commons.codec.binary.Base64;
 
 import java.io.ByteArrayInputStream;
@@ -45,6 +46,9 @@ public class Util {
     }
 
     public static String toMessage(AudioPlayerManager audioPlayerManager, AudioTrack track) throws IOException {
+        // Clients only know the track it stands in for
+        if (track instanceof CachedOpusAudioTrack) track = ((CachedOpusAudioTrack) track).getOriginal();
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         audioPlayerManager.encodeTrack(new MessageOutput(baos), track);
         return Base64.encodeBase64String(baos.toByteArray());
@@ -0,0 +1,123 @@
+package lavalink.server.io;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PlayerMigrationTest {
+
+    /**
+     * A node holding player states, which imports them like {@link PlayerFunHandlers#batch} would. Players exported
+     * with a "reject" flag fail to import, as a player whose track cannot be decoded would.
+     */
+    private static class Node implements PlayerMigration.Source, PlayerMigration.Target {
+        final Map<Long, JSONObject> players = new TreeMap<>();
+
+        Node withPlayers(long... guildIds) {
+            for (long guildId : guildIds) {
+                players.put(guildId, new JSONObject().put("guildId", String.valueOf(guildId)).put("volume", 100));
+            }
+            return this;
+        }
+
+        @Override
+        public List<Long> getGuildIds() {
+            return new ArrayList<>(players.keySet());
+        }
+
+        @Override
+        public JSONObject exportPlayer(long guildId) {
+            return players.get(guildId);
+        }
+
+        @Override
+        public void destroyPlayer(long guildId) {
+            players.remove(guildId);
+        }
+
+        @Override
+        public JSONArray importPlayers(JSONArray exports) {
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < exports.length(); i++) {
+                JSONObject export = exports.getJSONObject(i);
+                JSONObject result = new JSONObject().put("guildId", export.getString("guildId"));
+                if (export.optBoolean("reject")) {
+                    result.put("error", "Rejected");
+                } else {
+                    players.put(Long.parseLong(export.getString("guildId")), export);
+                    result.put("state", new JSONObject());
+                }
+                results.put(result);
+            }
+            return results;
+        }
+    }
+
+    @Test
+    public void migrate_All_MovesEveryPlayer() {
+        Node source = new Node().withPlayers(1, 2, 3);
+        Node target = new Node();
+
+        PlayerMigration.Result result = new PlayerMigration(source, target).migrate(null, null);
+
+        assertEquals(3, result.getMigrated().length());
+        assertEquals(0, result.getFailed().length());
+        assertTrue(source.players.isEmpty());
+        assertEquals(Arrays.asList(1L, 2L, 3L), target.getGuildIds());
+    }
+
+    @Test
+    public void migrate_PartiallyAccepted_KeepsRejectedPlayers() {
+        Node source = new Node().withPlayers(1, 2, 3);
+        source.players.get(2L).put("reject", true);
+        Node target = new Node();
+
+        PlayerMigration.Result result = new PlayerMigration(source, target).migrate(null, null);
+
+        assertEquals(Arrays.asList("1", "3"), Arrays.asList(result.getMigrated().toList().toArray()));
+        assertEquals(1, result.getFailed().length());
+        assertEquals("2", result.getFailed().getJSONObject(0).getString("guildId"));
+        assertEquals(Collections.singletonList(2L), source.getGuildIds());
+        assertEquals(Arrays.asList(1L, 3L), target.getGuildIds());
+    }
+
+    @Test
+    public void migrate_SelectedAndLimited_MovesOnlyThose() {
+        Node source = new Node().withPlayers(1, 2, 3, 4);
+        Node target = new Node();
+
+        // Guild 9 has no player and is skipped
+        PlayerMigration.Result result = new PlayerMigration(source, target).migrate(Arrays.asList(9L, 4L, 2L, 1L), 3);
+
+        assertEquals(2, result.getMigrated().length());
+        assertEquals(Arrays.asList(1L, 3L), source.getGuildIds());
+        assertEquals(Arrays.asList(2L, 4L), target.getGuildIds());
+    }
+
+    @Test
+    public void migrate_ZeroLimit_MovesNothing() {
+        Node source = new Node().withPlayers(1);
+        Node target = new Node();
+
+        PlayerMigration.Result result = new PlayerMigration(source, target).migrate(null, 0);
+
+        assertEquals(0, result.getMigrated().length());
+        assertFalse(source.players.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void migrate_NegativeLimit_Fails() {
+        new PlayerMigration(new Node(), new Node()).migrate(null, -1);
+    }
+}
@@ -0,0 +1,91 @@
+package lavalink.server.io;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static JSONObject session(String resumeKey, long resumeTimeout) {
+        return new JSONObject()
+                .put("resumeKey", resumeKey)
+                .put("resumeTimeout", resumeTimeout)
+                .put("players", new JSONArray().put(new JSONObject()
+                        .put("guildId", "123")
+                        .put("voice", new JSONObject().put("sessionId", "abc").put("event", new JSONObject()
+                                .put("endpoint", "voice.example")
+                                .put("token", "secret")))));
+    }
+
+    @Test
+    public void write_ReadBack_SameSessions() throws Exception {
+        SnapshotFile file = new SnapshotFile(folder.getRoot().toPath().resolve("sessions.json"));
+        JSONArray sessions = new JSONArray().put(session("a", 60)).put(session("b", 60));
+
+        file.write(sessions, 1000);
+        List<JSONObject> restored = file.readSessions(1000);
+
+        assertEquals(2, restored.size());
+        // Compared as parsed JSON, as numbers are read back as the smallest type that fits
+        assertTrue(restored.get(0).similar(new JSONObject(sessions.getJSONObject(0).toString())));
+        assertTrue(restored.get(1).similar(new JSONObject(sessions.getJSONObject(1).toString())));
+    }
+
+    @Test
+    public void readSessions_TimeoutPassed_SkipsSession() throws Exception {
+        SnapshotFile file = new SnapshotFile(folder.getRoot().toPath().resolve("sessions.json"));
+        file.write(new JSONArray().put(session("short", 10)).put(session("long", 120)), 0);
+
+        List<JSONObject> restored = file.readSessions(30_000);
+
+        assertEquals(1, restored.size());
+        assertEquals("long", restored.get(0).getString("resumeKey"));
+    }
+
+    @Test
+    public void readSessions_NoFile_Null() throws Exception {
+        assertNull(new SnapshotFile(folder.getRoot().toPath().resolve("missing.json")).readSessions(0));
+    }
+
+    @Test
+    public void write_ReplacesSnapshotAndLeavesNoTempFile() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("sessions.json");
+        Path temp = path.resolveSibling("sessions.json.tmp");
+        // Left behind by a crash while writing
+        Files.write(temp, "garbage".getBytes());
+        SnapshotFile file = new SnapshotFile(path);
+
+        file.write(new JSONArray().put(session("old", 60)), 0);
+        file.write(new JSONArray().put(session("new", 60)), 0);
+
+        assertFalse(Files.exists(temp));
+        List<JSONObject> restored = file.readSessions(0);
+        assertEquals(1, restored.size());
+        assertEquals("new", restored.get(0).getString("resumeKey"));
+    }
+
+    @Test
+    public void write_OwnerOnlyPermissions() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("sessions.json");
+        assumeTrue(path.getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+        new SnapshotFile(path).write(new JSONArray().put(session("a", 60)), 0);
+
+        assertEquals(SnapshotFile.OWNER_ONLY, Files.getPosixFilePermissions(path));
+    }
+}
@@ -0,0 +1,112 @@
+package lavalink.server.player.broadcast;
+
+import lavalink.server.util.Allocations;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+
+    private static final int MAX_FRAME_SIZE = 64;
+
+    /** Writes a frame whose bytes all hold its sequence number, and whose length varies with it */
+    private static void writeFrame(FrameRing ring, int seq) {
+        byte[] frame = new byte[MAX_FRAME_SIZE];
+        int length = 8 + seq % 32;
+        Arrays.fill(frame, 0, length, (byte) seq);
+        ring.write(frame, length);
+    }
+
+    /** @return the sequence number of the frame read, or -1 if there was none */
+    private static int readFrame(FrameRing ring, Broadcast.Reader reader) {
+        byte[] target = new byte[MAX_FRAME_SIZE];
+        int length = ring.read(reader, target);
+        if (length < 0) return -1;
+        for (int i = 1; i < length; i++) {
+            assertEquals("Torn frame", target[0], target[i]);
+        }
+        return target[0] & 0xFF;
+    }
+
+    @Test
+    public void read_EmptyRing_NoFrame() {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        assertEquals(-1, readFrame(ring, new Broadcast.Reader()));
+    }
+
+    @Test
+    public void read_Joining_StartsNearLiveEdge() {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        for (int i = 0; i < 10; i++) writeFrame(ring, i);
+
+        Broadcast.Reader reader = new Broadcast.Reader();
+        for (int seq = 10 - 1 - FrameRing.JITTER_FRAMES; seq < 10; seq++) {
+            assertEquals(seq, readFrame(ring, reader));
+        }
+        assertEquals(-1, readFrame(ring, reader));
+
+        writeFrame(ring, 10);
+        assertEquals(10, readFrame(ring, reader));
+    }
+
+    @Test
+    public void read_FallenBehind_SkipsToLiveEdge() {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        writeFrame(ring, 0);
+        Broadcast.Reader reader = new Broadcast.Reader();
+        assertEquals(0, readFrame(ring, reader));
+
+        int latest = FrameRing.SIZE * 2;
+        for (int i = 1; i <= latest; i++) writeFrame(ring, i);
+
+        assertEquals(latest - FrameRing.JITTER_FRAMES, readFrame(ring, reader));
+    }
+
+    @Test
+    public void read_SlightlyBehind_DoesNotSkip() {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        writeFrame(ring, 0);
+        Broadcast.Reader reader = new Broadcast.Reader();
+        assertEquals(0, readFrame(ring, reader));
+
+        for (int i = 1; i < FrameRing.SIZE - FrameRing.JITTER_FRAMES; i++) writeFrame(ring, i);
+
+        assertEquals(1, readFrame(ring, reader));
+    }
+
+    @Test
+    public void read_ConcurrentWriter_NeverReturnsOverwrittenFrame() throws Exception {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        int frames = 200_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < frames; i++) writeFrame(ring, i);
+        });
+        writer.start();
+
+        Broadcast.Reader reader = new Broadcast.Reader();
+        int read = 0;
+        while (writer.isAlive()) {
+            if (readFrame(ring, reader) >= 0) read++;
+        }
+        writer.join();
+        assertTrue(read > 0);
+    }
+
+    @Test
+    public void writeAndRead_DoNotAllocate() {
+        FrameRing ring = new FrameRing(MAX_FRAME_SIZE);
+        Broadcast.Reader reader = new Broadcast.Reader();
+        byte[] frame = new byte[MAX_FRAME_SIZE];
+        byte[] target = new byte[MAX_FRAME_SIZE];
+
+        double allocated = Allocations.perRun(100_000, () -> {
+            ring.write(frame, 40);
+            ring.read(reader, target);
+        });
+
+        assertTrue(allocated + " B per frame", allocated < 1);
+    }
+}
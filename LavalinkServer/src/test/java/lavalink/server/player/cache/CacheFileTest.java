@@ -0,0 +1,81 @@
+package lavalink.server.player.cache;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CacheFileTest {
+
+    private static final byte[][] FRAMES = {
+            {1, 2, 3},
+            {},
+            {4, 5, 6, 7, 8},
+            {9}
+    };
+
+    private static byte[] writeFrames() throws IOException {
+        int[] offsets = new int[FRAMES.length + 1];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES.length; i++) {
+            data.write(FRAMES[i]);
+            offsets[i + 1] = offsets[i] + FRAMES[i].length;
+        }
+        // Trailing bytes past the last offset are not part of the file
+        data.write(new byte[]{42, 42});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CacheFile.write(out, offsets, FRAMES.length, new ByteArrayInputStream(data.toByteArray()));
+        return out.toByteArray();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+
+    @Test
+    public void write_ReadBack_SameFrames() throws IOException {
+        CacheFile file = CacheFile.read(ByteBuffer.wrap(writeFrames()));
+
+        assertEquals(FRAMES.length, file.getFrameCount());
+        for (int i = 0; i < FRAMES.length; i++) {
+            assertArrayEquals(FRAMES[i], toArray(file.frame(i)));
+        }
+    }
+
+    @Test
+    public void frameAt_Positions_MapToFrames() throws IOException {
+        CacheFile file = CacheFile.read(ByteBuffer.wrap(writeFrames()));
+
+        assertEquals(0, file.frameAt(-5));
+        assertEquals(0, file.frameAt(0));
+        assertEquals(0, file.frameAt(CacheFile.FRAME_DURATION_MS - 1));
+        assertEquals(2, file.frameAt(2 * CacheFile.FRAME_DURATION_MS + 5));
+        assertEquals(FRAMES.length, file.frameAt(60_000));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_Truncated_Fails() throws IOException {
+        byte[] bytes = writeFrames();
+        CacheFile.read(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_NotACacheFile_Fails() throws IOException {
+        CacheFile.read(ByteBuffer.wrap(new byte[64]));
+    }
+
+    @Test(expected = IOException.class)
+    public void write_DataShorterThanOffsets_Fails() throws IOException {
+        int[] offsets = {0, 10};
+        CacheFile.write(new ByteArrayOutputStream(), offsets, 1, new ByteArrayInputStream(new byte[4]));
+    }
+}
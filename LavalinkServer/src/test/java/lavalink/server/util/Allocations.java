@@ -0,0 +1,45 @@
+package lavalink.server.util;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the current thread, for tests asserting that hot paths allocate little or nothing.
+ * Tests using it are skipped on JVMs that cannot measure allocations per thread.
+ */
+public final class Allocations {
+
+    private static final int WARMUP_ITERATIONS = 20_000;
+
+    private Allocations() {
+    }
+
+    /**
+     * Runs the operation enough times for the JIT to compile it, then measures it
+     *
+     * @return the bytes allocated per run, on average over the given number of runs
+     */
+    public static double perRun(int iterations, Runnable operation) {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        return (double) (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled());
+        return sunThreads;
+    }
+}
@@ -0,0 +1,78 @@
+package lavalink.server.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CborCodecTest {
+
+    private static final JSONObject PLAYER_UPDATE = new JSONObject()
+            .put("op", "playerUpdate")
+            .put("guildId", "123456789012345678")
+            .put("state", new JSONObject()
+                    .put("time", 1500467109000L)
+                    .put("position", 60000L)
+                    .put("connected", true)
+                    .put("ping", 42));
+
+    @Test
+    public void roundTrip_MatchesJson() throws Exception {
+        JSONObject json = new JSONObject()
+                .put("op", "event")
+                .put("guildId", "123456789012345678")
+                .put("state", new JSONObject()
+                        .put("time", 1500467109000L)
+                        .put("position", 60000.5)
+                        .put("volume", 100)
+                        .put("connected", true)
+                        .put("reason", JSONObject.NULL))
+                .put("categories", Arrays.asList("sponsor", "intro"))
+                .put("tracks", new JSONArray().put(new JSONObject().put("track", "QAAAjQ==")));
+
+        byte[] encoded = CborCodec.encode(json);
+        JSONObject decoded = CborCodec.decode(encoded, 0, encoded.length);
+
+        assertTrue(decoded.similar(json));
+        assertTrue(encoded.length < json.toString().length());
+    }
+
+    @Test
+    public void decode_RespectsOffset() throws Exception {
+        byte[] encoded = CborCodec.encode(new JSONObject().put("op", "ping"));
+        byte[] padded = new byte[encoded.length + 4];
+        System.arraycopy(encoded, 0, padded, 2, encoded.length);
+
+        assertEquals("ping", CborCodec.decode(padded, 2, encoded.length).getString("op"));
+    }
+
+    @Test
+    public void encode_SmallerThanJson() throws Exception {
+        byte[] json = PLAYER_UPDATE.toString().getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(CborCodec.encode(PLAYER_UPDATE).length < json.length);
+    }
+
+    @Test
+    public void decode_ByteString_AsBase64() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = new CBORFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("op", "play");
+            generator.writeFieldName("track");
+            generator.writeBinary(new byte[]{1, 2, 3, (byte) 0xFF});
+            generator.writeEndObject();
+        }
+        byte[] encoded = out.toByteArray();
+
+        assertEquals("AQID/w==", CborCodec.decode(encoded, 0, encoded.length).getString("track"));
+    }
+}
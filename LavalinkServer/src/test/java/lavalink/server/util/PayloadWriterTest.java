@@ -0,0 +1,88 @@
+package lavalink.server.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadWriterTest {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    @Test
+    public void write_MatchesToString() throws Exception {
+        JSONObject json = new JSONObject()
+                .put("op", "event")
+                .put("type", "TrackStartEvent")
+                .put("guildId", "123456789012345678")
+                .put("title", "\"Quoted\" </script> \u00e9\u4e2d\ud83c\udfb5")
+                .put("state", new JSONObject()
+                        .put("time", 1500467109000L)
+                        .put("position", 60000.5)
+                        .put("connected", true)
+                        .put("reason", JSONObject.NULL))
+                .put("categories", Arrays.asList("sponsor", "intro"))
+                .put("tracks", new JSONArray().put(new JSONObject().put("track", "QAAAjQ==")));
+
+        String written = PayloadWriter.write(json, factory).toUtf8String();
+
+        assertTrue(new JSONObject(written).similar(new JSONObject(json.toString())));
+    }
+
+    @Test
+    public void write_ReusesBuffer() throws Exception {
+        PayloadWriter.write(new JSONObject().put("op", "stats").put("padding", new char[4096]), factory);
+        String written = PayloadWriter.write(new JSONObject().put("op", "ping"), factory).toUtf8String();
+
+        assertTrue(new JSONObject(written).similar(new JSONObject().put("op", "ping")));
+    }
+
+    @Test
+    public void write_AddsSeqWithoutModifyingPayload() throws Exception {
+        JSONObject json = new JSONObject().put("op", "event").put("type", "TrackEndEvent");
+
+        String written = PayloadWriter.write(json, factory, 42).toUtf8String();
+
+        assertTrue(new JSONObject(written).similar(new JSONObject(json.toString()).put("seq", 42)));
+        assertFalse(json.has("seq"));
+    }
+
+    @Test
+    public void write_AllocatesLessThanToString() {
+        JSONObject trackStart = new JSONObject()
+                .put("op", "event")
+                .put("type", "TrackStartEvent")
+                .put("guildId", "123456789012345678")
+                .put("track", "QAAAjQIAJVJpY2sgQXN0bGV5IC0gTmV2ZXIgR29ubmEgR2l2ZSBZb3UgVXAADlJpY2tBc3RsZXlWRVZPAAAAAAAD");
+        JSONObject playerUpdate = new JSONObject()
+                .put("op", "playerUpdate")
+                .put("guildId", "123456789012345678")
+                .put("state", new JSONObject()
+                        .put("time", 1500467109000L)
+                        .put("position", 60000L)
+                        .put("connected", true)
+                        .put("ping", 42));
+
+        for (JSONObject json : Arrays.asList(trackStart, playerUpdate)) {
+            double written = Allocations.perRun(10_000, () -> {
+                try {
+                    PayloadWriter.write(json, factory);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            double toString = Allocations.perRun(10_000, () -> json.toString().getBytes(StandardCharsets.UTF_8));
+
+            assertTrue(json.getString("op") + ": written " + written + " B, toString " + toString + " B",
+                    written < toString / 2);
+        }
+    }
+}